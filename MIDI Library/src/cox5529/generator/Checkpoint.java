@@ -0,0 +1,140 @@
+package cox5529.generator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Progress of a long training run: the names of the files that were already processed and the partial model built from them. A checkpoint is written to a temporary file and then moved over the old one, so a run that is killed while saving still leaves the previous checkpoint behind. The file is laid out as follows:
+ * 
+ * <pre>
+ * int     magic "CCKP"
+ * int     version
+ * int     file count, then for every file: int length and the UTF-8 bytes of its name
+ * partial the partial model in the form written by PartialSerializer
+ * </pre>
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class Checkpoint {
+	
+	static final int MAGIC = 0x43434B50;
+	static final int VERSION = 1;
+	
+	private final LinkedHashSet<String> processed;
+	private final PartialModel partial;
+	
+	/**
+	 * Constructs an empty checkpoint
+	 * 
+	 * @param partial the partial model that files are trained into
+	 */
+	public Checkpoint(PartialModel partial) {
+		this(partial, new LinkedHashSet<String>());
+	}
+	
+	private Checkpoint(PartialModel partial, LinkedHashSet<String> processed) {
+		this.partial = partial;
+		this.processed = processed;
+	}
+	
+	/**
+	 * Gets the partial model of this checkpoint
+	 * 
+	 * @return the partial model
+	 */
+	public PartialModel getPartial() {
+		return partial;
+	}
+	
+	/**
+	 * Checks whether a file was already processed
+	 * 
+	 * @param name the name of the file
+	 * @return true if the file was processed
+	 */
+	public boolean isProcessed(String name) {
+		return processed.contains(name);
+	}
+	
+	/**
+	 * Records that a file was processed. Files that could not be read should be recorded as well, so that they are not retried on every resume.
+	 * 
+	 * @param name the name of the file
+	 */
+	public void addProcessed(String name) {
+		processed.add(name);
+	}
+	
+	/**
+	 * Gets the number of files that were processed
+	 * 
+	 * @return the number of processed files
+	 */
+	public int getProcessedCount() {
+		return processed.size();
+	}
+	
+	/**
+	 * Writes this checkpoint to a file, replacing the file only once the whole checkpoint was written
+	 * 
+	 * @param path the file to write to
+	 * @throws IOException if an I/O error occurs writing to the file
+	 */
+	public void save(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(processed.size());
+			Iterator<String> it = processed.iterator();
+			while(it.hasNext()) {
+				byte[] name = it.next().getBytes(StandardCharsets.UTF_8);
+				out.writeInt(name.length);
+				out.write(name);
+			}
+			PartialSerializer.write(out, partial);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Reads a checkpoint written by save. The file is read onto the heap rather than memory-mapped, so that it can be replaced by the next save while the run continues.
+	 * 
+	 * @param path the file to read from
+	 * @return the checkpoint stored in the file
+	 * @throws IOException if an I/O error occurs reading from the file or the file is not a checkpoint
+	 */
+	public static Checkpoint load(Path path) throws IOException {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+			if(in.remaining() < 8 || in.getInt() != MAGIC)
+				throw new IOException("\"" + path + "\" is not a training checkpoint.");
+			int version = in.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported checkpoint version " + version + ".");
+			int count = in.getInt();
+			LinkedHashSet<String> processed = new LinkedHashSet<String>();
+			for(int i = 0; i < count; i++) {
+				byte[] name = new byte[in.getInt()];
+				in.get(name);
+				processed.add(new String(name, StandardCharsets.UTF_8));
+			}
+			return new Checkpoint(PartialSerializer.read(in, path), processed);
+		} catch(BufferUnderflowException e) {
+			throw new IOException("Checkpoint \"" + path + "\" is truncated.", e);
+		}
+	}
+}
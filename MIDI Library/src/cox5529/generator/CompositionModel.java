@@ -0,0 +1,197 @@
+package cox5529.generator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import cox5529.generator.storage.NoteGrams;
+import cox5529.generator.storage.Phrase;
+import cox5529.generator.storage.PitchTrie;
+import cox5529.midi.MIDIFile;
+import cox5529.midi.ProgressMonitor;
+
+/**
+ * Immutable result of training a SimpleCompositions object. A single model can be shared by any number of threads, each generating songs in its own GenerationSession.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class CompositionModel {
+	
+	final int depth;
+	final NoteGrams[] grams;
+	final byte[] instruments;
+	final boolean isMajor;
+	final boolean keyRelative;
+	final long[] noteAverage;
+	final byte[] min;
+	final byte[] max;
+	final List<Phrase> phrases;
+	final PitchTrie trie;
+	final GenerationPlan plan;
+	final int res;
+	final int sharps;
+	final int tempo;
+	final long[] volAverage;
+	
+	/**
+	 * Constructs a new model. The arrays and lists are copied so that later changes to them do not affect the model.
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 * @param grams the velocity model of every track
+	 * @param instruments the instrument of every track
+	 * @param isMajor true if the key is major
+	 * @param keyRelative true if the pitches in the trie are relative to the key instead of absolute
+	 * @param noteAverage the average octave of every track
+	 * @param min minimum pitches for every track
+	 * @param max maximum pitches for every track
+	 * @param phrases the phrase structure of the input
+	 * @param trie the pitch contexts of the melody
+	 * @param res the resolution of the input
+	 * @param sharps the number of sharps in the key signature, negative if flats
+	 * @param tempo the tempo of the input
+	 * @param volAverage the average volume of every track
+	 */
+	CompositionModel(int depth, NoteGrams[] grams, byte[] instruments, boolean isMajor, boolean keyRelative, long[] noteAverage, byte[] min, byte[] max, List<Phrase> phrases, PitchTrie trie, int res, int sharps, int tempo, long[] volAverage) {
+		this.depth = depth;
+		this.grams = grams.clone();
+		this.instruments = instruments.clone();
+		this.isMajor = isMajor;
+		this.keyRelative = keyRelative;
+		this.noteAverage = noteAverage.clone();
+		this.min = min.clone();
+		this.max = max.clone();
+		this.phrases = Collections.unmodifiableList(new ArrayList<Phrase>(phrases));
+		this.trie = trie;
+		this.plan = new GenerationPlan(this.phrases, res);
+		this.res = res;
+		this.sharps = sharps;
+		this.tempo = tempo;
+		this.volAverage = volAverage.clone();
+	}
+	
+	/**
+	 * Generates a new song
+	 * 
+	 * @param measureDepth scanning depth for rhythm generation
+	 * 		
+	 * @return the MIDIFile object representing the generated song
+	 */
+	public MIDIFile generateSong(int measureDepth) {
+		return generateSong(measureDepth, new SplittableRandom());
+	}
+	
+	/**
+	 * Generates a new song. Generating with the same seed and measure depth from the same model always produces the same song.
+	 * 
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param seed the seed of the random number generator
+	 * 		
+	 * @return the MIDIFile object representing the generated song
+	 */
+	public MIDIFile generateSong(int measureDepth, long seed) {
+		return generateSong(measureDepth, new SplittableRandom(seed));
+	}
+	
+	/**
+	 * Generates a new song. This method does not modify the model and may be called from several threads at once as long as each thread uses its own random number generator.
+	 * 
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param random the random number generator used for every random decision made while generating
+	 * 		
+	 * @return the MIDIFile object representing the generated song
+	 */
+	public MIDIFile generateSong(int measureDepth, SplittableRandom random) {
+		return generateSong(measureDepth, random, ProgressMonitor.NONE);
+	}
+	
+	/**
+	 * Generates a new song, reporting every generated phrase and written measure to the monitor
+	 * 
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param random the random number generator used for every random decision made while generating
+	 * @param monitor the monitor to report progress to and check for cancellation
+	 * 		
+	 * @return the MIDIFile object representing the generated song
+	 * @throws java.util.concurrent.CancellationException if the monitor was cancelled
+	 */
+	public MIDIFile generateSong(int measureDepth, SplittableRandom random, ProgressMonitor monitor) {
+		return new GenerationSession(this, random, monitor).generateSong(measureDepth);
+	}
+	
+	/**
+	 * Generates several songs at once, spreading the work across the common fork-join pool. Every song gets its own random number generator split from the given seed, so song i is the same no matter how many threads are used.
+	 * 
+	 * @param count the number of songs to generate
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param seed the seed that the random number generator of every song is split from
+	 * 		
+	 * @return an ordered stream of the generated songs. Songs are generated as the stream is consumed.
+	 */
+	public Stream<MIDIFile> generateSongs(int count, int measureDepth, long seed) {
+		SplittableRandom root = new SplittableRandom(seed);
+		SplittableRandom[] randoms = new SplittableRandom[count];
+		for(int i = 0; i < count; i++) {
+			randoms[i] = root.split();
+		}
+		return IntStream.range(0, count).parallel().mapToObj(i -> generateSong(measureDepth, randoms[i]));
+	}
+	
+	/**
+	 * Generates several songs at once and encodes each as the bytes of a .mid file. See generateSongs(int, int, long).
+	 * 
+	 * @param count the number of songs to generate
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param seed the seed that the random number generator of every song is split from
+	 * 		
+	 * @return an ordered stream of the encoded songs
+	 */
+	public Stream<byte[]> generateEncodedSongs(int count, int measureDepth, long seed) {
+		return generateSongs(count, measureDepth, seed).map(song -> song.toByteArray(false));
+	}
+	
+	/**
+	 * Writes this model to a versioned binary snapshot
+	 * 
+	 * @param path the file to write to
+	 * @throws IOException if an I/O error occurs writing to the file
+	 */
+	public void save(Path path) throws IOException {
+		ModelSerializer.save(this, path);
+	}
+	
+	/**
+	 * Reads a model from a binary snapshot written by save(Path)
+	 * 
+	 * @param path the file to read from
+	 * @return the model stored in the file
+	 * @throws IOException if an I/O error occurs reading from the file or the file is not a model snapshot
+	 */
+	public static CompositionModel load(Path path) throws IOException {
+		return ModelSerializer.load(path);
+	}
+	
+	/**
+	 * Gets the resolution of the songs generated by this model
+	 * 
+	 * @return the resolution of the songs generated by this model
+	 */
+	public int getResolution() {
+		return res;
+	}
+	
+	public String toString() {
+		String re = "";
+		re += ("Major:\t" + isMajor);
+		re += ("\nSharps:\t" + sharps);
+		re += ("\nTempo:\t" + tempo);
+		re += ("\nPitches:\n");
+		re += trie;
+		return re;
+	}
+}
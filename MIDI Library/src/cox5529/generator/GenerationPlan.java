@@ -0,0 +1,151 @@
+package cox5529.generator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import cox5529.generator.storage.Phrase;
+import cox5529.generator.storage.PhraseTree;
+
+/**
+ * The parts of song generation that do not depend on randomness, computed once per CompositionModel and shared by every GenerationSession.
+ * 
+ * Generated phrases are stored by a session in one array of slots: first the base phrases in baseIds order, then the negative phrases in negIds order, then the derivative phrases in derivIds order.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+final class GenerationPlan {
+	
+	final int trackCount;
+	final int[] baseIds;
+	final long[] baseOnsetMask;
+	final Phrase[] candidates;
+	final long[] candidateOnsetMask;
+	final int[] negIds;
+	final int[] negBase;
+	final int[] derivIds;
+	final int[] derivBase;
+	final int[] songIds;
+	final int[][] songSlots;
+	
+	/**
+	 * Compiles the generation plan for a phrase structure
+	 * 
+	 * @param phrases the phrase structure of the model
+	 * @param res the resolution of the model
+	 */
+	GenerationPlan(List<Phrase> phrases, int res) {
+		trackCount = 1 + phrases.get(0).getSupportCount();
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		for(int i = 0; i < phrases.size(); i++) {
+			int[] childs = phrases.get(i).getChildIds();
+			for(int j = 0; j < childs.length; j++) {
+				ids.add(childs[j]);
+			}
+		}
+		ArrayList<Integer> base = new ArrayList<Integer>();
+		ArrayList<Integer> neg = new ArrayList<Integer>();
+		ArrayList<Integer> deriv = new ArrayList<Integer>();
+		for(int val : ids) {
+			if(val < 0)
+				neg.add(val);
+			else if(val % 100 == 0)
+				base.add(val);
+			else
+				deriv.add(val);
+		}
+		baseIds = toArray(base);
+		negIds = toArray(neg);
+		derivIds = toArray(deriv);
+		
+		negBase = new int[negIds.length];
+		for(int i = 0; i < negIds.length; i++) {
+			negBase[i] = findBase(baseIds, negIds[i], -negIds[i] / 100 * 100);
+		}
+		derivBase = new int[derivIds.length];
+		for(int i = 0; i < derivIds.length; i++) {
+			derivBase[i] = findBase(baseIds, derivIds[i], derivIds[i] / 100 * 100);
+		}
+		
+		LinkedHashSet<Phrase> measures = new LinkedHashSet<Phrase>();
+		for(int i = 0; i < phrases.size(); i++) {
+			Phrase p = phrases.get(i);
+			if(p instanceof PhraseTree && p.getId() % 100 == 0 && p.getId() > 0)
+				measures.addAll(((PhraseTree) p).getChildren());
+			else if(p.getId() % 100 == 0 && p.getId() > 0)
+				measures.add(p);
+		}
+		candidates = measures.toArray(new Phrase[measures.size()]);
+		candidateOnsetMask = new long[candidates.length];
+		for(int i = 0; i < candidates.length; i++) {
+			candidateOnsetMask[i] = candidates[i].getOnsetMask(res);
+		}
+		HashMap<Integer, Phrase> leaves = new HashMap<Integer, Phrase>();
+		for(int i = 0; i < phrases.size(); i++) {
+			Phrase p = phrases.get(i);
+			if(p instanceof PhraseTree) {
+				for(Phrase c : ((PhraseTree) p).getChildren()) {
+					leaves.putIfAbsent(c.getId(), c);
+				}
+			} else
+				leaves.putIfAbsent(p.getId(), p);
+		}
+		baseOnsetMask = new long[baseIds.length];
+		for(int i = 0; i < baseIds.length; i++) {
+			Phrase p = leaves.get(baseIds[i]);
+			if(p == null)
+				throw new IllegalStateException("Base phrase " + baseIds[i] + " does not appear in the phrase structure.");
+			baseOnsetMask[i] = p.getOnsetMask(res);
+		}
+		
+		HashMap<Integer, Integer> slots = new HashMap<Integer, Integer>();
+		for(int i = 0; i < baseIds.length; i++) {
+			slots.put(baseIds[i], i);
+		}
+		for(int i = 0; i < negIds.length; i++) {
+			slots.put(negIds[i], baseIds.length + i);
+		}
+		for(int i = 0; i < derivIds.length; i++) {
+			slots.put(derivIds[i], baseIds.length + negIds.length + i);
+		}
+		songIds = new int[phrases.size()];
+		songSlots = new int[phrases.size()][];
+		for(int i = 0; i < phrases.size(); i++) {
+			Phrase p = phrases.get(i);
+			int[] childs = p.getChildIds();
+			songIds[i] = p.getId();
+			songSlots[i] = new int[childs.length];
+			for(int j = 0; j < childs.length; j++) {
+				songSlots[i][j] = slots.get(childs[j]);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of generated phrases a session needs to store
+	 * 
+	 * @return the number of slots
+	 */
+	int getSlotCount() {
+		return baseIds.length + negIds.length + derivIds.length;
+	}
+	
+	private static int findBase(int[] baseIds, int id, int baseId) {
+		int idx = Arrays.binarySearch(baseIds, baseId);
+		if(idx < 0)
+			throw new IllegalStateException("Phrase " + id + " is derived from base phrase " + baseId + ", which does not appear in the phrase structure.");
+		return idx;
+	}
+	
+	private static int[] toArray(ArrayList<Integer> list) {
+		int[] re = new int[list.size()];
+		for(int i = 0; i < re.length; i++) {
+			re[i] = list.get(i);
+		}
+		return re;
+	}
+}
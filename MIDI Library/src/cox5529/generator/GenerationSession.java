@@ -0,0 +1,231 @@
+package cox5529.generator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import cox5529.generator.storage.Note;
+import cox5529.generator.storage.NoteGrams;
+import cox5529.generator.storage.Phrase;
+import cox5529.generator.storage.PhraseTree;
+import cox5529.generator.storage.PitchTrie;
+import cox5529.generator.storage.Rhythm;
+import cox5529.midi.Helper;
+import cox5529.midi.MIDIFile;
+import cox5529.midi.ProgressMonitor;
+import cox5529.midi.event.Tempo;
+import cox5529.midi.event.TimeSignature;
+import cox5529.midi.track.MusicTrack;
+
+/**
+ * Generates a single song from a CompositionModel. A session only holds the scratch state of one generateSong call, so any number of sessions may read the same model at once.
+ * 
+ * Songs are written in 4/4 and every phrase is placed as a bar of four beats. This holds because phrases are only learned from measures in 4/4.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+class GenerationSession {
+	
+	private final NoteGrams[] grams;
+	private final byte[] instruments;
+	private final boolean isMajor;
+	private final int keyBase;
+	private final long[] noteAverage;
+	private final byte[] min;
+	private final ProgressMonitor monitor;
+	private final byte[] max;
+	private final PitchTrie trie;
+	private final GenerationPlan plan;
+	private final SplittableRandom random;
+	private final int res;
+	private final int sharps;
+	private final int tempo;
+	private final long[] volAverage;
+	
+	/**
+	 * Constructs a new session
+	 * 
+	 * @param model the model to generate from
+	 * @param random the random number generator used for every random decision made by this session
+	 * @param monitor the monitor to report progress to and check for cancellation
+	 */
+	GenerationSession(CompositionModel model, SplittableRandom random, ProgressMonitor monitor) {
+		this.grams = model.grams;
+		this.instruments = model.instruments;
+		this.isMajor = model.isMajor;
+		this.keyBase = (model.keyRelative ? Helper.getBase(model.sharps, model.isMajor): 0);
+		this.noteAverage = model.noteAverage;
+		this.min = model.min;
+		this.max = model.max;
+		this.monitor = monitor;
+		this.trie = model.trie;
+		this.plan = model.plan;
+		this.random = random;
+		this.res = model.res;
+		this.sharps = model.sharps;
+		this.tempo = model.tempo;
+		this.volAverage = model.volAverage;
+	}
+	
+	/**
+	 * Generates a new song
+	 * 
+	 * @param measureDepth scanning depth for rhythm generation
+	 * 		
+	 * @return the MIDIFile object representing the generated song
+	 */
+	MIDIFile generateSong(int measureDepth) {
+		MIDIFile output = new MIDIFile();
+		output.setResolution(res);
+		MusicTrack[] tracks = new MusicTrack[plan.trackCount];
+		for(int i = 0; i < tracks.length; i++) {
+			tracks[i] = new MusicTrack();
+		}
+		tracks[0].addEvent(TimeSignature.construct(0, (byte) 4, (byte) 4));
+		Tempo t = Tempo.construct(0, tempo);
+		tracks[0].addEvent(t);
+		for(int i = 0; i < tracks.length; i++) {
+			tracks[i].changeInstrument(0, 0, instruments[i]);
+		}
+		long pos = 0;
+		Phrase[] generated = new Phrase[plan.getSlotCount()];
+		int[] candidates = new int[plan.candidates.length];
+		for(int i = 0; i < candidates.length; i++) {
+			candidates[i] = i;
+		}
+		int candidateCount = candidates.length;
+		int[] r = new int[measureDepth];
+		for(int idx = 0; idx < plan.baseIds.length; idx++) {
+			int p = -1;
+			for(int i = 0; i < r.length; i++) {
+				r[i] = random.nextInt(candidateCount);
+			}
+			long rhythm = plan.baseOnsetMask[idx];
+			for(int i = 0; i < r.length; i++) {
+				if(p == -1)
+					p = r[i];
+				else if(Rhythm.distance(plan.candidateOnsetMask[candidates[p]], rhythm) > Rhythm.distance(plan.candidateOnsetMask[candidates[r[i]]], rhythm))
+					p = r[i];
+			}
+			Phrase chosen = plan.candidates[candidates[p]];
+			System.arraycopy(candidates, p + 1, candidates, p, candidateCount - p - 1);
+			candidateCount--;
+			ArrayList<Note> notes = chosen.getNotes();
+			pos = applyPitches(notes, pos);
+			generated[idx] = new Phrase(notes, plan.baseIds[idx], chosen.getChords());
+			monitor.report(ProgressMonitor.PHRASES, idx + 1, generated.length);
+		}
+		
+		int slot = plan.baseIds.length;
+		for(int idx = 0; idx < plan.negIds.length; idx++) {
+			Phrase p = generated[plan.negBase[idx]];
+			ArrayList<Note> notes = p.getNotes();
+			pos = applyPitches(notes, pos);
+			generated[slot++] = new Phrase(notes, plan.negIds[idx], p.getChords());
+			monitor.report(ProgressMonitor.PHRASES, slot, generated.length);
+		}
+		
+		for(int idx = 0; idx < plan.derivIds.length; idx++) {
+			Phrase p = generated[plan.derivBase[idx]];
+			generated[slot++] = p.mutate(sharps, isMajor, plan.derivIds[idx], random);
+			monitor.report(ProgressMonitor.PHRASES, slot, generated.length);
+		}
+		
+		ArrayList<Phrase> song = new ArrayList<Phrase>();
+		for(int i = 0; i < plan.songSlots.length; i++) {
+			int[] childs = plan.songSlots[i];
+			Phrase toAdd;
+			if(childs.length >= 2) {
+				toAdd = PhraseTree.construct(generated[childs[0]], generated[childs[1]], plan.songIds[i]);
+				for(int j = 2; j < childs.length; j++) {
+					toAdd = PhraseTree.construct(toAdd, generated[childs[j]], plan.songIds[i]);
+				}
+			} else if(childs.length == 1)
+				toAdd = generated[childs[0]];
+			else
+				continue;
+			song.add(toAdd);
+		}
+		long ipos = 0;
+		int[] prevVelocity = new int[tracks.length];
+		Arrays.fill(prevVelocity, NoteGrams.START);
+		for(int i = 0; i < song.size(); i++) {
+			pos = ipos;
+			Phrase p = song.get(i);
+			p.generateSupports(tracks.length - 1, noteAverage, sharps, isMajor, max, min, random);
+			ArrayList<Note> mel = p.getNotes();
+			for(int j = 0; j < mel.size(); j++) {
+				Note n = mel.get(j).clone();
+				long dur = n.getDuration();
+				n.setStart(pos);
+				n.setStop(pos + dur);
+				tracks[0].addNote(n, getVelocity(prevVelocity, 0, n));
+				pos += 1 + dur;
+			}
+			int m = (int) ((pos + 1) / (4 * res));
+			ArrayList<ArrayList<Note>> supports = p.getSupports();
+			for(int j = 0; j < supports.size(); j++) {
+				pos = ipos;
+				ArrayList<Note> sup = supports.get(j);
+				for(int k = 0; k < sup.size(); k++) {
+					Note n = sup.get(k).clone();
+					long dur = n.getDuration();
+					n.setStart(pos);
+					n.setStop(pos + dur);
+					tracks[j + 1].addNote(n, getVelocity(prevVelocity, j + 1, n));
+					pos += 1 + dur;
+				}
+			}
+			ipos = m * res * 4;
+			monitor.report(ProgressMonitor.MEASURES, m, -1);
+		}
+		for(int i = 0; i < tracks.length; i++) {
+			output.addTrack(tracks[i]);
+		}
+		return output;
+		
+	}
+	
+	private byte getVelocity(int[] prevVelocity, int track, Note n) {
+		if(n.getPitch() == -1)
+			return (byte) volAverage[track];
+		byte vel = grams[track].getVelocity(prevVelocity[track], (byte) volAverage[track], random);
+		prevVelocity[track] = vel;
+		return vel;
+	}
+	
+	private long applyPitches(ArrayList<Note> notes, long pos) {
+		int len = 0;
+		for(int k = 0; k < notes.size(); k++) {
+			if(notes.get(k).getPitch() != -1)
+				len++;
+		}
+		byte[] pitches = getPitches(len);
+		len = 0;
+		for(int k = 0; k < notes.size(); k++) {
+			Note n = notes.get(k);
+			if(n.getPitch() != -1) {
+				int pitch = pitches[len] + keyBase;
+				if(pitch > 127)
+					pitch -= 12;
+				n.setPitch((byte) pitch);
+				
+				len++;
+			}
+			long dur = n.getDuration();
+			n.setStart(pos);
+			n.setStop(pos + dur);
+			pos += dur + 1;
+		}
+		return pos;
+	}
+	
+	private byte[] getPitches(int length) {
+		byte[] re = new byte[length];
+		for(int i = 0; i < length; i++) {
+			re[i] = trie.getFollowPitch(re, i, random);
+		}
+		return re;
+	}
+}
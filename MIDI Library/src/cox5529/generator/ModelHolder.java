@@ -0,0 +1,89 @@
+package cox5529.generator;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cox5529.midi.MIDIFile;
+
+/**
+ * Holds the current CompositionModel of a SimpleCompositions object that keeps being trained. Readers get the current model without locking, while training builds the next model in the background and publishes it once it is complete.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public class ModelHolder {
+	
+	private final AtomicReference<CompositionModel> current;
+	private final SimpleCompositions trainer;
+	
+	/**
+	 * Constructs a holder with no trained model
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 */
+	public ModelHolder(int depth) {
+		this.trainer = new SimpleCompositions(depth);
+		this.current = new AtomicReference<CompositionModel>();
+	}
+	
+	/**
+	 * Constructs a holder that publishes the models of an already trained SimpleCompositions object. The object must not be trained directly afterwards.
+	 * 
+	 * @param trainer the object to train
+	 */
+	public ModelHolder(SimpleCompositions trainer) {
+		this.trainer = trainer;
+		this.current = new AtomicReference<CompositionModel>(trainer.getModel());
+	}
+	
+	/**
+	 * Gets the model that is currently published. The returned model never changes, even if a newer model is published while it is in use.
+	 * 
+	 * @return the current model, or null if nothing has been trained yet
+	 */
+	public CompositionModel get() {
+		return current.get();
+	}
+	
+	/**
+	 * Generates a new song from the model that is currently published
+	 * 
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param random the random number generator used for every random decision made while generating
+	 * 		
+	 * @return the MIDIFile object representing the generated song
+	 * @throws IllegalStateException if no model has been trained yet
+	 */
+	public MIDIFile generateSong(int measureDepth, SplittableRandom random) {
+		CompositionModel model = current.get();
+		if(model == null)
+			throw new IllegalStateException("no model trained yet");
+		return model.generateSong(measureDepth, random);
+	}
+	
+	/**
+	 * Trains on the given files and publishes the resulting model. Only one training runs at a time; readers are never blocked.
+	 * 
+	 * @param input the files to add
+	 * @return the newly published model
+	 */
+	public CompositionModel train(MIDIFile... input) {
+		synchronized(trainer) {
+			trainer.trainAll(input);
+			CompositionModel model = trainer.getModel();
+			current.set(model);
+			return model;
+		}
+	}
+	
+	/**
+	 * Trains on the given files on the common fork-join pool and publishes the resulting model when training finishes
+	 * 
+	 * @param input the files to add
+	 * @return a future that completes with the newly published model
+	 */
+	public CompletableFuture<CompositionModel> trainInBackground(MIDIFile... input) {
+		return CompletableFuture.supplyAsync(() -> train(input));
+	}
+}
@@ -0,0 +1,249 @@
+package cox5529.generator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import cox5529.generator.storage.Note;
+import cox5529.generator.storage.NoteGrams;
+import cox5529.generator.storage.Phrase;
+import cox5529.generator.storage.PhraseTree;
+import cox5529.generator.storage.PitchTrie;
+
+/**
+ * Reads and writes the binary snapshot format of a CompositionModel. All values are big-endian. A snapshot is laid out as follows:
+ * 
+ * <pre>
+ * int     magic "CMDL"
+ * int     version
+ * int     depth, resolution, sharps, tempo
+ * byte    1 if the key is major
+ * byte    1 if the pitches of the trie are relative to the key
+ * int     track count, then for every track: byte instrument, byte min, byte max, long noteAverage, long volAverage
+ * trie    the PitchTrie of the melody in the form written by PitchTrie.write
+ * grams   for every track, the NoteGrams of the track in the form written by NoteGrams.write
+ * int     phrase count, then every phrase
+ * </pre>
+ * 
+ * A phrase is a byte tag followed by an int id. Tag 1 is a PhraseTree followed by an int child count and its children. Nested trees that share the id of their parent are written as part of the parent, so a tree that was built by chaining construct is written as one tree with all of its children. Tag 0 is a leaf followed by its notes, its supports and its chords. Notes are an int count followed by long start, long stop and byte pitch for every note. Supports and chords are an int count, or -1 if missing; every support is a list of notes and every chord is an int length followed by its pitches.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+final class ModelSerializer {
+	
+	static final int MAGIC = 0x434D444C;
+	static final int VERSION = 1;
+	
+	private ModelSerializer() {
+	}
+	
+	/**
+	 * Writes a model to a file
+	 * 
+	 * @param model the model to write
+	 * @param path the file to write to
+	 * @throws IOException if an I/O error occurs writing to the file
+	 */
+	static void save(CompositionModel model, Path path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(model.depth);
+			out.writeInt(model.res);
+			out.writeInt(model.sharps);
+			out.writeInt(model.tempo);
+			out.writeByte(model.isMajor ? 1: 0);
+			out.writeByte(model.keyRelative ? 1: 0);
+			out.writeInt(model.instruments.length);
+			for(int i = 0; i < model.instruments.length; i++) {
+				out.writeByte(model.instruments[i]);
+				out.writeByte(model.min[i]);
+				out.writeByte(model.max[i]);
+				out.writeLong(model.noteAverage[i]);
+				out.writeLong(model.volAverage[i]);
+			}
+			model.trie.write(out);
+			for(int i = 0; i < model.grams.length; i++) {
+				model.grams[i].write(out);
+			}
+			writePhrases(out, model.phrases);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a model from a file. The file is memory-mapped and parsed in place rather than read through a stream, but the model itself is built on the heap.
+	 * 
+	 * @param path the file to read from
+	 * @return the model stored in the file
+	 * @throws IOException if an I/O error occurs reading from the file or the file is not a model snapshot
+	 */
+	static CompositionModel load(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(in.remaining() < 8 || in.getInt() != MAGIC)
+				throw new IOException("\"" + path + "\" is not a model snapshot.");
+			int version = in.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported model snapshot version " + version + ".");
+			int depth = in.getInt();
+			int res = in.getInt();
+			int sharps = in.getInt();
+			int tempo = in.getInt();
+			boolean isMajor = in.get() == 1;
+			boolean keyRelative = in.get() == 1;
+			int tracks = in.getInt();
+			byte[] instruments = new byte[tracks];
+			byte[] min = new byte[tracks];
+			byte[] max = new byte[tracks];
+			long[] noteAverage = new long[tracks];
+			long[] volAverage = new long[tracks];
+			for(int i = 0; i < tracks; i++) {
+				instruments[i] = in.get();
+				min[i] = in.get();
+				max[i] = in.get();
+				noteAverage[i] = in.getLong();
+				volAverage[i] = in.getLong();
+			}
+			PitchTrie trie = PitchTrie.read(in);
+			NoteGrams[] grams = new NoteGrams[tracks];
+			for(int i = 0; i < tracks; i++) {
+				grams[i] = NoteGrams.read(in);
+			}
+			ArrayList<Phrase> phrases = readPhrases(in);
+			return new CompositionModel(depth, grams, instruments, isMajor, keyRelative, noteAverage, min, max, phrases, trie, res, sharps, tempo, volAverage);
+		} catch(BufferUnderflowException e) {
+			throw new IOException("Model snapshot \"" + path + "\" is truncated.", e);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	static void writePhrases(DataOutputStream out, List<Phrase> phrases) throws IOException {
+		out.writeInt(phrases.size());
+		for(int i = 0; i < phrases.size(); i++) {
+			writePhrase(out, phrases.get(i));
+		}
+	}
+	
+	static ArrayList<Phrase> readPhrases(ByteBuffer in) {
+		int count = in.getInt();
+		ArrayList<Phrase> re = new ArrayList<Phrase>(count);
+		for(int i = 0; i < count; i++) {
+			re.add(readPhrase(in));
+		}
+		return re;
+	}
+	
+	private static void writePhrase(DataOutputStream out, Phrase p) throws IOException {
+		if(p instanceof PhraseTree) {
+			ArrayList<Phrase> children = new ArrayList<Phrase>();
+			addChildren(children, ((PhraseTree) p).getFirstChild(), p.getId());
+			addChildren(children, ((PhraseTree) p).getSecondChild(), p.getId());
+			out.writeByte(1);
+			out.writeInt(p.getId());
+			out.writeInt(children.size());
+			for(int i = 0; i < children.size(); i++) {
+				writePhrase(out, children.get(i));
+			}
+			return;
+		}
+		out.writeByte(0);
+		out.writeInt(p.getId());
+		writeNotes(out, p.getNotes());
+		ArrayList<ArrayList<Note>> supports = p.getSupports();
+		if(supports == null)
+			out.writeInt(-1);
+		else {
+			out.writeInt(supports.size());
+			for(int i = 0; i < supports.size(); i++) {
+				writeNotes(out, supports.get(i));
+			}
+		}
+		ArrayList<byte[]> chords = p.getChords();
+		if(chords == null)
+			out.writeInt(-1);
+		else {
+			out.writeInt(chords.size());
+			for(int i = 0; i < chords.size(); i++) {
+				out.writeInt(chords.get(i).length);
+				out.write(chords.get(i));
+			}
+		}
+	}
+	
+	private static Phrase readPhrase(ByteBuffer in) {
+		byte tag = in.get();
+		int id = in.getInt();
+		if(tag == 1) {
+			int count = in.getInt();
+			ArrayList<Phrase> children = new ArrayList<Phrase>(count);
+			for(int i = 0; i < count; i++) {
+				children.add(readPhrase(in));
+			}
+			return PhraseTree.construct(children, id);
+		}
+		ArrayList<Note> notes = readNotes(in);
+		ArrayList<ArrayList<Note>> supports = null;
+		int count = in.getInt();
+		if(count != -1) {
+			supports = new ArrayList<ArrayList<Note>>(count);
+			for(int i = 0; i < count; i++) {
+				supports.add(readNotes(in));
+			}
+		}
+		ArrayList<byte[]> chords = null;
+		count = in.getInt();
+		if(count != -1) {
+			chords = new ArrayList<byte[]>(count);
+			for(int i = 0; i < count; i++) {
+				byte[] chord = new byte[in.getInt()];
+				in.get(chord);
+				chords.add(chord);
+			}
+		}
+		return new Phrase(notes, supports, id, chords);
+	}
+	
+	private static void addChildren(ArrayList<Phrase> children, Phrase p, int id) {
+		if(p instanceof PhraseTree && p.getId() == id) {
+			addChildren(children, ((PhraseTree) p).getFirstChild(), id);
+			addChildren(children, ((PhraseTree) p).getSecondChild(), id);
+		} else
+			children.add(p);
+	}
+	
+	private static void writeNotes(DataOutputStream out, ArrayList<Note> notes) throws IOException {
+		out.writeInt(notes.size());
+		for(int i = 0; i < notes.size(); i++) {
+			Note n = notes.get(i);
+			out.writeLong(n.getStart());
+			out.writeLong(n.getStop());
+			out.writeByte(n.getPitch());
+		}
+	}
+	
+	private static ArrayList<Note> readNotes(ByteBuffer in) {
+		int count = in.getInt();
+		ArrayList<Note> re = new ArrayList<Note>(count);
+		for(int i = 0; i < count; i++) {
+			long start = in.getLong();
+			long stop = in.getLong();
+			re.add(new Note(start, stop, in.get()));
+		}
+		return re;
+	}
+}
@@ -0,0 +1,340 @@
+package cox5529.generator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import cox5529.generator.storage.NoteGrams;
+import cox5529.generator.storage.Phrase;
+import cox5529.generator.storage.PhraseTree;
+import cox5529.generator.storage.PitchSketch;
+import cox5529.generator.storage.PitchTable;
+import cox5529.generator.storage.PitchTrie;
+import cox5529.midi.Helper;
+
+/**
+ * Statistics and phrases gathered from part of the training input. Partial models built from different files can be merged in any grouping, and the merged result can be turned into a CompositionModel.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class PartialModel {
+	
+	int depth;
+	NoteGrams[] grams;
+	byte[] instruments;
+	boolean isMajor = true;
+	boolean keyFound = false;
+	boolean keyRelative;
+	byte[] min;
+	byte[] max;
+	int maxContexts = 0;
+	long[] noteSum;
+	long[] noteTotal;
+	ArrayList<Phrase> phrases;
+	PitchTable pitches;
+	int res = -1;
+	int sharps = 0;
+	PitchSketch sketch;
+	int tempo = 120;
+	boolean tempoFound = false;
+	long[] volTotal;
+	
+	/**
+	 * Constructs an empty partial model
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 */
+	public PartialModel(int depth) {
+		this(depth, false, 0);
+	}
+	
+	/**
+	 * Constructs an empty partial model
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 * @param keyRelative true to store melody pitches relative to the key of their file instead of as absolute pitches
+	 */
+	public PartialModel(int depth, boolean keyRelative) {
+		this(depth, keyRelative, 0);
+	}
+	
+	/**
+	 * Constructs an empty partial model
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 * @param keyRelative true to store melody pitches relative to the key of their file
+	 * @param trackCount the number of tracks to keep statistics for
+	 */
+	PartialModel(int depth, boolean keyRelative, int trackCount) {
+		this.depth = depth;
+		this.keyRelative = keyRelative;
+		phrases = new ArrayList<Phrase>();
+		pitches = new PitchTable(depth);
+		grams = new NoteGrams[0];
+		instruments = new byte[0];
+		min = new byte[0];
+		max = new byte[0];
+		noteSum = new long[0];
+		noteTotal = new long[0];
+		volTotal = new long[0];
+		ensureTracks(trackCount);
+	}
+	
+	/**
+	 * Grows the statistic arrays so that they hold at least the given number of tracks
+	 * 
+	 * @param trackCount the number of tracks
+	 */
+	void ensureTracks(int trackCount) {
+		int old = noteSum.length;
+		if(trackCount <= old)
+			return;
+		grams = Arrays.copyOf(grams, trackCount);
+		for(int i = old; i < trackCount; i++) {
+			grams[i] = new NoteGrams();
+		}
+		instruments = copyOf(instruments, trackCount, (byte) -1);
+		min = copyOf(min, trackCount, (byte) 127);
+		max = copyOf(max, trackCount, (byte) 0);
+		noteSum = Arrays.copyOf(noteSum, trackCount);
+		noteTotal = Arrays.copyOf(noteTotal, trackCount);
+		volTotal = Arrays.copyOf(volTotal, trackCount);
+	}
+	
+	/**
+	 * Bounds the number of pitch contexts kept by this partial model. Once the limit is reached, the rarest half of the contexts is dropped. Every count is also kept in a count-min sketch of fixed size, so a dropped context that is found again starts from an estimate of the counts it had instead of from nothing. The contexts that survive are exported exactly by toModel.
+	 * 
+	 * @param maxContexts the largest number of contexts to keep, at least 2, or 0 to keep every context
+	 * @throws IllegalArgumentException if maxContexts is 1
+	 */
+	public void setMaxContexts(int maxContexts) {
+		if(maxContexts <= 0) {
+			this.maxContexts = 0;
+			sketch = null;
+			return;
+		}
+		if(maxContexts < 2)
+			throw new IllegalArgumentException("At least 2 contexts must be kept, not " + maxContexts + ".");
+		this.maxContexts = maxContexts;
+		sketch = new PitchSketch(maxContexts * 4);
+		long[] pairs = pitches.getPairs();
+		int context = -1;
+		byte[] precede = null;
+		for(int i = 0; i < pairs.length; i++) {
+			if(PitchTable.getContext(pairs[i]) != context) {
+				context = PitchTable.getContext(pairs[i]);
+				precede = pitches.getPrecede(context);
+			}
+			sketch.add(precede, PitchTable.getFollow(pairs[i]), pitches.getCount(pairs[i]));
+		}
+		if(pitches.size() > maxContexts)
+			prune();
+	}
+	
+	/**
+	 * Counts a pitch that follows the given preceding pitches
+	 * 
+	 * @param precede the preceding pitches
+	 * @param follow the pitch that followed them
+	 */
+	void addPitch(byte[] precede, byte follow) {
+		int count = 1;
+		if(sketch != null) {
+			sketch.add(precede, follow, 1);
+			if(pitches.find(precede) == -1)
+				count = Math.max(count, sketch.estimate(precede, follow));
+		}
+		int size = pitches.size();
+		pitches.add(precede, follow, count);
+		if(pitches.size() > size && maxContexts > 0 && pitches.size() > maxContexts)
+			prune();
+	}
+	
+	private void addPitches(PitchTable table, boolean sketched) {
+		long[] pairs = table.getPairs();
+		int start = 0;
+		while(start < pairs.length) {
+			int context = PitchTable.getContext(pairs[start]);
+			int end = start;
+			while(end < pairs.length && PitchTable.getContext(pairs[end]) == context) {
+				end++;
+			}
+			byte[] precede = table.getPrecede(context);
+			if(sketch != null && !sketched) {
+				for(int i = start; i < end; i++) {
+					sketch.add(precede, PitchTable.getFollow(pairs[i]), table.getCount(pairs[i]));
+				}
+			}
+			boolean found = pitches.find(precede) != -1;
+			for(int i = start; i < end; i++) {
+				byte follow = PitchTable.getFollow(pairs[i]);
+				int count = table.getCount(pairs[i]);
+				if(!found && sketch != null)
+					count = Math.max(count, sketch.estimate(precede, follow));
+				pitches.add(precede, follow, count);
+			}
+			if(!found && maxContexts > 0 && pitches.size() > maxContexts)
+				prune();
+			start = end;
+		}
+	}
+	
+	private void prune() {
+		int keep = maxContexts / 2;
+		int[] totals = new int[pitches.size()];
+		for(int i = 0; i < totals.length; i++) {
+			totals[i] = pitches.getTotal(i);
+		}
+		int[] sorted = totals.clone();
+		Arrays.sort(sorted);
+		int threshold = sorted[sorted.length - keep];
+		int atThreshold = 0;
+		for(int i = sorted.length - keep; i < sorted.length && sorted[i] == threshold; i++) {
+			atThreshold++;
+		}
+		boolean[] kept = new boolean[totals.length];
+		for(int i = 0; i < totals.length; i++) {
+			if(totals[i] > threshold)
+				kept[i] = true;
+			else if(totals[i] == threshold && atThreshold > 0) {
+				kept[i] = true;
+				atThreshold--;
+			}
+		}
+		pitches.retain(kept);
+	}
+	
+	/**
+	 * Moves every counted pitch context so that the tonic of the key of this partial model becomes pitch class 0. Does nothing unless this partial model stores key-relative pitches. Must be called once, after the key of a single file has been found.
+	 */
+	void toKeyRelative() {
+		if(!keyRelative)
+			return;
+		pitches.transpose(-Helper.getBase(sharps, isMajor));
+	}
+	
+	/**
+	 * Merges another partial model into this one. Counts are added, minimums and maximums are combined and the phrases of the other model are appended with their ids moved past the ids used by this model. Key, tempo and instruments found in the other model replace the ones in this model. The other model must not be used after it has been merged.
+	 * 
+	 * @param other the partial model to merge into this one
+	 * @return this partial model
+	 */
+	public PartialModel merge(PartialModel other) {
+		if(other.depth != depth)
+			throw new IllegalArgumentException("Cannot merge models with depths " + depth + " and " + other.depth + ".");
+		if(other.keyRelative != keyRelative)
+			throw new IllegalArgumentException("Cannot merge a key-relative model with an absolute one.");
+		ensureTracks(other.noteSum.length);
+		for(int i = 0; i < other.noteSum.length; i++) {
+			grams[i].addAll(other.grams[i]);
+			noteSum[i] += other.noteSum[i];
+			noteTotal[i] += other.noteTotal[i];
+			volTotal[i] += other.volTotal[i];
+			if(other.min[i] < min[i])
+				min[i] = other.min[i];
+			if(other.max[i] > max[i])
+				max[i] = other.max[i];
+			if(other.instruments[i] != -1)
+				instruments[i] = other.instruments[i];
+		}
+		if(res == -1)
+			res = other.res;
+		if(other.keyFound) {
+			keyFound = true;
+			sharps = other.sharps;
+			isMajor = other.isMajor;
+		}
+		if(other.tempoFound) {
+			tempoFound = true;
+			tempo = other.tempo;
+		}
+		if(sketch != null && other.sketch != null && sketch.getWidth() == other.sketch.getWidth()) {
+			sketch.addAll(other.sketch);
+			addPitches(other.pitches, true);
+		} else
+			addPitches(other.pitches, false);
+		int offset = 0;
+		for(int i = 0; i < phrases.size(); i++) {
+			offset = Math.max(offset, getMaxId(phrases.get(i)));
+		}
+		if(!phrases.isEmpty())
+			offset = 100 * (offset / 100) + 100;
+		for(int i = 0; i < other.phrases.size(); i++) {
+			Phrase p = other.phrases.get(i);
+			offsetIds(p, offset);
+			phrases.add(p);
+		}
+		return this;
+	}
+	
+	/**
+	 * Builds the immutable model described by this partial model. This partial model can still be trained or merged afterwards.
+	 * 
+	 * @return a new CompositionModel
+	 */
+	public CompositionModel toModel() {
+		long[] noteAverage = new long[noteSum.length];
+		long[] volAverage = new long[volTotal.length];
+		byte[] instruments = new byte[this.instruments.length];
+		NoteGrams[] grams = new NoteGrams[this.grams.length];
+		for(int i = 0; i < noteAverage.length; i++) {
+			noteAverage[i] = noteSum[i] / noteTotal[i];
+			noteAverage[i] -= noteAverage[i] % 12;
+			volAverage[i] = volTotal[i] / noteTotal[i];
+			instruments[i] = (this.instruments[i] == -1 ? 0: this.instruments[i]);
+			grams[i] = new NoteGrams(this.grams[i]);
+		}
+		return new CompositionModel(depth, grams, instruments, isMajor, keyRelative, noteAverage, min, max, phrases, new PitchTrie(pitches), res, sharps, tempo, volAverage);
+	}
+	
+	/**
+	 * Writes this partial model to a file that can be read by load, possibly by another process
+	 * 
+	 * @param path the file to write to
+	 * @throws IOException if an I/O error occurs writing to the file
+	 */
+	public void save(Path path) throws IOException {
+		PartialSerializer.save(this, path);
+	}
+	
+	/**
+	 * Reads a partial model written by save
+	 * 
+	 * @param path the file to read from
+	 * @return the partial model stored in the file
+	 * @throws IOException if an I/O error occurs reading from the file or the file is not a partial model
+	 */
+	public static PartialModel load(Path path) throws IOException {
+		return PartialSerializer.load(path);
+	}
+	
+	private static int getMaxId(Phrase p) {
+		int re = Math.abs(p.getId());
+		if(p instanceof PhraseTree) {
+			re = Math.max(re, getMaxId(((PhraseTree) p).getFirstChild()));
+			re = Math.max(re, getMaxId(((PhraseTree) p).getSecondChild()));
+		}
+		return re;
+	}
+	
+	private static void offsetIds(Phrase p, int offset) {
+		if(p.getId() < 0)
+			p.setId(p.getId() - offset);
+		else
+			p.setId(p.getId() + offset);
+		if(p instanceof PhraseTree) {
+			offsetIds(((PhraseTree) p).getFirstChild(), offset);
+			offsetIds(((PhraseTree) p).getSecondChild(), offset);
+		}
+	}
+	
+	private static byte[] copyOf(byte[] arr, int length, byte fill) {
+		byte[] re = Arrays.copyOf(arr, length);
+		for(int i = arr.length; i < length; i++) {
+			re[i] = fill;
+		}
+		return re;
+	}
+}
@@ -0,0 +1,192 @@
+package cox5529.generator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import cox5529.generator.storage.NoteGrams;
+import cox5529.generator.storage.PitchSketch;
+import cox5529.generator.storage.PitchTable;
+
+/**
+ * Reads and writes the binary format of a PartialModel. Unlike a model snapshot, a partial file keeps the sums and counts behind every average and the pitch contexts as a table, so partial files written by different processes can be merged into one model. All values are big-endian. A partial file is laid out as follows:
+ * 
+ * <pre>
+ * int     magic "CPRT"
+ * int     version
+ * int     depth
+ * byte    1 if the pitches are relative to the key
+ * int     resolution, or -1 if no file was analyzed
+ * byte    1 if a key signature was found, then int sharps and byte 1 if the key is major
+ * byte    1 if a tempo was found, then int tempo
+ * int     track count, then for every track: byte instrument, byte min, byte max, long noteSum, long noteTotal, long volTotal and the NoteGrams of the track
+ * int     pitch count, then for every pitch context: depth precede bytes, an int follow count, then a byte pitch and an int count for every follow
+ * int     the most pitch contexts to keep, or 0 if the model is unbounded. A bounded model is followed by its count-min sketch: int width, then 4 rows of width int cells
+ * int     phrase count, then every phrase in the form used by model snapshots
+ * </pre>
+ * 
+ * A bounded partial model loads with the same bound and sketch, so training can go on from it as if it had never been saved.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+final class PartialSerializer {
+	
+	static final int MAGIC = 0x43505254;
+	static final int VERSION = 1;
+	
+	private PartialSerializer() {
+	}
+	
+	/**
+	 * Writes a partial model to a file
+	 * 
+	 * @param p the partial model to write
+	 * @param path the file to write to
+	 * @throws IOException if an I/O error occurs writing to the file
+	 */
+	static void save(PartialModel p, Path path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+		try {
+			write(out, p);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a partial model from a file
+	 * 
+	 * @param path the file to read from
+	 * @return the partial model stored in the file
+	 * @throws IOException if an I/O error occurs reading from the file or the file is not a partial model
+	 */
+	static PartialModel load(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), path);
+		} catch(BufferUnderflowException e) {
+			throw new IOException("Partial model \"" + path + "\" is truncated.", e);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Writes a partial model, starting with its magic number and version
+	 * 
+	 * @param out the stream to write to
+	 * @param p the partial model to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void write(DataOutputStream out, PartialModel p) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(p.depth);
+		out.writeByte(p.keyRelative ? 1: 0);
+		out.writeInt(p.res);
+		out.writeByte(p.keyFound ? 1: 0);
+		out.writeInt(p.sharps);
+		out.writeByte(p.isMajor ? 1: 0);
+		out.writeByte(p.tempoFound ? 1: 0);
+		out.writeInt(p.tempo);
+		out.writeInt(p.noteSum.length);
+		for(int i = 0; i < p.noteSum.length; i++) {
+			out.writeByte(p.instruments[i]);
+			out.writeByte(p.min[i]);
+			out.writeByte(p.max[i]);
+			out.writeLong(p.noteSum[i]);
+			out.writeLong(p.noteTotal[i]);
+			out.writeLong(p.volTotal[i]);
+			p.grams[i].write(out);
+		}
+		writePitches(out, p.pitches);
+		out.writeInt(p.maxContexts);
+		if(p.maxContexts > 0)
+			p.sketch.write(out);
+		ModelSerializer.writePhrases(out, p.phrases);
+	}
+	
+	/**
+	 * Reads a partial model written by write
+	 * 
+	 * @param in the buffer to read from
+	 * @param path the file the buffer was read from, used in error messages
+	 * @return the partial model
+	 * @throws IOException if the buffer does not hold a partial model
+	 */
+	static PartialModel read(ByteBuffer in, Path path) throws IOException {
+		if(in.remaining() < 8 || in.getInt() != MAGIC)
+			throw new IOException("\"" + path + "\" is not a partial model.");
+		int version = in.getInt();
+		if(version != VERSION)
+			throw new IOException("Unsupported partial model version " + version + ".");
+		int depth = in.getInt();
+		boolean keyRelative = in.get() == 1;
+		PartialModel p = new PartialModel(depth, keyRelative);
+		p.res = in.getInt();
+		p.keyFound = in.get() == 1;
+		p.sharps = in.getInt();
+		p.isMajor = in.get() == 1;
+		p.tempoFound = in.get() == 1;
+		p.tempo = in.getInt();
+		int tracks = in.getInt();
+		p.ensureTracks(tracks);
+		for(int i = 0; i < tracks; i++) {
+			p.instruments[i] = in.get();
+			p.min[i] = in.get();
+			p.max[i] = in.get();
+			p.noteSum[i] = in.getLong();
+			p.noteTotal[i] = in.getLong();
+			p.volTotal[i] = in.getLong();
+			p.grams[i] = NoteGrams.read(in);
+		}
+		p.pitches = readPitches(in, depth);
+		p.maxContexts = in.getInt();
+		if(p.maxContexts > 0)
+			p.sketch = PitchSketch.read(in);
+		p.phrases = ModelSerializer.readPhrases(in);
+		return p;
+	}
+	
+	private static void writePitches(DataOutputStream out, PitchTable pitches) throws IOException {
+		out.writeInt(pitches.size());
+		long[] pairs = pitches.getPairs();
+		int start = 0;
+		while(start < pairs.length) {
+			int context = PitchTable.getContext(pairs[start]);
+			int end = start;
+			while(end < pairs.length && PitchTable.getContext(pairs[end]) == context) {
+				end++;
+			}
+			out.write(pitches.getPrecede(context));
+			out.writeInt(end - start);
+			for(int i = start; i < end; i++) {
+				out.writeByte(PitchTable.getFollow(pairs[i]));
+				out.writeInt(pitches.getCount(pairs[i]));
+			}
+			start = end;
+		}
+	}
+	
+	private static PitchTable readPitches(ByteBuffer in, int depth) {
+		int count = in.getInt();
+		PitchTable re = new PitchTable(depth);
+		for(int i = 0; i < count; i++) {
+			byte[] precede = new byte[depth];
+			in.get(precede);
+			int size = in.getInt();
+			for(int j = 0; j < size; j++) {
+				byte pitch = in.get();
+				re.add(precede, pitch, in.getInt());
+			}
+		}
+		return re;
+	}
+}
@@ -3,23 +3,32 @@ package cox5529.generator;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import cox5529.generator.storage.Measure;
 import cox5529.generator.storage.Note;
+import cox5529.generator.storage.NoteGrams;
 import cox5529.generator.storage.Phrase;
+import cox5529.generator.storage.PhraseIndex;
 import cox5529.generator.storage.PhraseTree;
-import cox5529.generator.storage.Pitch;
 import cox5529.midi.MIDIFile;
+import cox5529.midi.ProgressMonitor;
 import cox5529.midi.event.MIDIEvent;
 import cox5529.midi.event.Tempo;
 import cox5529.midi.event.TimeSignature;
+import cox5529.midi.track.MeasureSegmenter;
 import cox5529.midi.track.MusicTrack;
+import cox5529.midi.track.NoteListener;
+import cox5529.midi.track.SegmentedTrack;
 
 /**
  * Class that contains basic methods of algorithmic composition.
@@ -30,349 +39,406 @@ import cox5529.midi.track.MusicTrack;
 public class SimpleCompositions {
 	
 	private int depth;
-	private byte[] instruments = null;
-	private boolean isMajor = true;
-	private ArrayList<Measure> measures = null;
-	private long[] noteAverage = null;
-	private byte[] min = null;
-	private byte[] max = null;
-	private ArrayList<Note> notes;
-	private long[] noteSum = null;
-	private long[] noteTotal = null;
-	private ArrayList<Phrase> phrases;
-	private ArrayList<Pitch> pitches;
-	private int res = -1;
-	private int sharps = 0;
-	private int tempo = 120;
-	private long[] volAverage = null;
-	
-	private long[] volTotal = null;
+	private boolean keyRelative;
+	private volatile CompositionModel model;
+	private PartialModel partial;
 	
 	/**
-	 * Constructs a new object that can be used to generate music.
+	 * Constructs a new object that can be used to generate music. Every file is analyzed on its own core and the results are merged in the order the files were given.
 	 * 
 	 * @param input the given files to randomize
 	 * @param depth the depth to scan when generating a pitch
 	 */
 	public SimpleCompositions(int depth, MIDIFile... input) {
+		this(depth, false, input);
+	}
+	
+	/**
+	 * Constructs a new object that can be used to generate music. Every file is analyzed on its own core and the results are merged in the order the files were given.
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 * @param keyRelative true to learn melody pitches relative to the key of each file, so the same melody in different keys is counted as one. Generated melodies are moved back into the key of the model.
+	 * @param input the given files to randomize
+	 */
+	public SimpleCompositions(int depth, boolean keyRelative, MIDIFile... input) {
+		this(depth, keyRelative, ProgressMonitor.NONE, input);
+	}
+	
+	/**
+	 * Constructs a new object that can be used to generate music. Every file is analyzed on its own core and the results are merged in the order the files were given. Every analyzed file and measure is reported to the monitor.
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 * @param keyRelative true to learn melody pitches relative to the key of each file
+	 * @param monitor the monitor to report progress to and check for cancellation
+	 * @param input the given files to randomize
+	 * @throws java.util.concurrent.CancellationException if the monitor was cancelled
+	 */
+	public SimpleCompositions(int depth, boolean keyRelative, ProgressMonitor monitor, MIDIFile... input) {
+		this(depth, keyRelative, 0, monitor, input);
+	}
+	
+	/**
+	 * Constructs a new object that can be used to generate music, with the number of pitch contexts bounded from the first file on. Every file is analyzed on its own core and the results are merged in the order the files were given. Every analyzed file and measure is reported to the monitor.
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 * @param keyRelative true to learn melody pitches relative to the key of each file
+	 * @param maxContexts the largest number of pitch contexts to keep, at least 2, or 0 to keep every context
+	 * @param monitor the monitor to report progress to and check for cancellation
+	 * @param input the given files to randomize
+	 * @throws IllegalArgumentException if maxContexts is 1
+	 * @throws java.util.concurrent.CancellationException if the monitor was cancelled
+	 * @see #setMaxContexts(int)
+	 */
+	public SimpleCompositions(int depth, boolean keyRelative, int maxContexts, ProgressMonitor monitor, MIDIFile... input) {
 		this.depth = depth;
-		isMajor = true;
-		sharps = 0;
-		tempo = 120;
-		pitches = new ArrayList<Pitch>();
-		notes = new ArrayList<Note>();
-		phrases = new ArrayList<Phrase>();
-		measures = new ArrayList<Measure>();
-		noteSum = null;
-		noteTotal = null;
-		volTotal = null;
-		instruments = null;
-		res = -1;
-		int prevMeasureSize = 0;
-		long length = 0;
-		for(int b = 0; b < input.length; b++) {
-			ArrayList<Measure> measures = new ArrayList<Measure>();
-			ArrayList<MusicTrack> tracks = input[b].getTracks();
-			if(noteSum == null) {
-				noteSum = new long[tracks.size()];
-				noteTotal = new long[tracks.size()];
-				volTotal = new long[tracks.size()];
-				instruments = new byte[tracks.size()];
-				min = new byte[tracks.size()];
-				for(int i = 0; i < min.length; i++) {
-					min[i] = 127;
-				}
-				max = new byte[tracks.size()];
-			}
-			if(res == -1) {
-				res = input[b].getResolution();
-			}
-			ArrayList<MIDIEvent> events = tracks.get(0).getEvents();
-			ArrayList<MIDIEvent> cur = new ArrayList<MIDIEvent>();
-			long measureStart = 0;
-			long maxDur = res * 4 - 1;
-			long curStart = -1;
-			for(int j = 0; j < events.size(); j++) {
-				MIDIEvent event = events.get(j);
-				if(event.getStatus() == (byte) 0x90 && event.getData()[1] != 0) {
-					if(event.getTimeStamp() > measureStart + res * 4) {
-						ArrayList<MIDIEvent> toAdd = new ArrayList<MIDIEvent>();
-						for(int k = 0; k < cur.size(); k++) {
-							toAdd.add(cur.get(k));
-						}
-						measures.add(new Measure(toAdd, res));
-						measureStart += maxDur + 1;
-						j--;
-						continue;
-					}
-					if(j != events.size() - 3) {
-						// Pitch stuff
-						if(event.getData()[0] > max[0])
-							max[0] = event.getData()[0];
-						if(event.getData()[0] < min[0])
-							min[0] = event.getData()[0];
-						noteSum[0] += event.getData()[0];
-						noteTotal[0]++;
-						volTotal[0] += event.getData()[1];
-						byte[] key = new byte[depth];
-						for(int k = 0; k < depth; k++) {
-							key[k] = events.get(j - k).getData()[0];
-						}
-						byte nextPitch = 0;
-						for(int k = j + 2; k < events.size(); k++) {
-							if(events.get(k).getStatus() == (byte) 0x90 && event.getData()[1] != 0) {
-								nextPitch = events.get(k).getData()[0];
-								break;
-							}
-						}
-						Pitch n = new Pitch(key, nextPitch);
-						boolean cont = false;
-						for(int k = 0; k < pitches.size(); k++) {
-							if(n.equals(pitches.get(k))) {
-								pitches.get(k).addPitch(nextPitch);
-								cont = true;
-								break;
-							}
-						}
-						if(!cont) {
-							pitches.add(n);
-						}
+		this.keyRelative = keyRelative;
+		partial = new PartialModel(depth, keyRelative);
+		partial.setMaxContexts(maxContexts);
+		trainAll(monitor, input);
+	}
+	
+	/**
+	 * Bounds the memory used for the pitch contexts of the training data. Rare contexts are dropped once the limit is reached, so very large collections can be trained without keeping every context. Files that were already trained are only bounded from here on; pass the bound to the constructor to bound every file.
+	 * 
+	 * @param maxContexts the largest number of pitch contexts to keep, at least 2, or 0 to keep every context
+	 * @throws IllegalArgumentException if maxContexts is 1
+	 */
+	public void setMaxContexts(int maxContexts) {
+		partial.setMaxContexts(maxContexts);
+		model = null;
+	}
+	
+	/**
+	 * Adds a file to the training data. Files that were trained earlier are not analyzed again.
+	 * 
+	 * @param file the file to add
+	 */
+	public void train(MIDIFile file) {
+		partial.merge(analyze(depth, keyRelative, file, ProgressMonitor.NONE));
+		model = null;
+	}
+	
+	/**
+	 * Adds several files to the training data. The files are analyzed in parallel and merged in the order they were given. Files that were trained earlier are not analyzed again.
+	 * 
+	 * @param input the files to add
+	 */
+	public void trainAll(MIDIFile... input) {
+		trainAll(ProgressMonitor.NONE, input);
+	}
+	
+	/**
+	 * Adds several files to the training data. The files are analyzed in parallel and merged in the order they were given. If the monitor is cancelled while the files are analyzed, none of them is added.
+	 * 
+	 * @param monitor the monitor to report progress to and check for cancellation
+	 * @param input the files to add
+	 * @throws java.util.concurrent.CancellationException if the monitor was cancelled
+	 */
+	public void trainAll(ProgressMonitor monitor, MIDIFile... input) {
+		AtomicInteger done = new AtomicInteger();
+		PartialModel[] shards = Arrays.stream(input).parallel().map(file -> {
+			PartialModel p = analyze(depth, keyRelative, file, monitor);
+			monitor.report(ProgressMonitor.FILES, done.incrementAndGet(), input.length);
+			return p;
+		}).toArray(PartialModel[]::new);
+		for(int i = 0; i < shards.length; i++) {
+			partial.merge(shards[i]);
+		}
+		if(shards.length > 0)
+			model = null;
+	}
+	
+	/**
+	 * Analyzes a single file. Support tracks are analyzed in parallel. Pitches and velocities are learned from every measure, but phrases only from measures in 4/4, because generated songs are written as bars of four beats.
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 * @param keyRelative true to store melody pitches relative to the key of the file
+	 * @param file the file to analyze
+	 * @param monitor the monitor to report analyzed measures to and check for cancellation
+	 * @return the partial model of the file
+	 */
+	static PartialModel analyze(int depth, boolean keyRelative, MIDIFile file, ProgressMonitor monitor) {
+		ArrayList<MusicTrack> tracks = file.getTracks();
+		PartialModel p = new PartialModel(depth, keyRelative, tracks.size());
+		p.res = file.getResolution();
+		int res = p.res;
+		ArrayList<ArrayList<MIDIEvent>> trackEvents = new ArrayList<ArrayList<MIDIEvent>>();
+		for(int i = 0; i < tracks.size(); i++) {
+			trackEvents.add(tracks.get(i).getEvents());
+		}
+		MeasureSegmenter segmenter = new MeasureSegmenter(res, trackEvents);
+		ArrayList<MIDIEvent> events = trackEvents.get(0);
+		SegmentedTrack melody = segmenter.split(events, new NoteListener() {
+			
+			private int prevVelocity = NoteGrams.START;
+			
+			@Override public void noteOn(int j, MIDIEvent event) {
+				monitor.checkCancelled();
+				if(j != events.size() - 3) {
+					byte[] data = event.getData();
+					// Pitch stuff
+					if(data[0] > p.max[0])
+						p.max[0] = data[0];
+					if(data[0] < p.min[0])
+						p.min[0] = data[0];
+					p.noteSum[0] += data[0];
+					p.noteTotal[0]++;
+					p.volTotal[0] += data[1];
+					if(j < depth - 1)
+						return; // not enough events before this note to fill a context
+					byte[] key = new byte[depth];
+					for(int k = 0; k < depth; k++) {
+						key[k] = events.get(j - k).getData()[0];
 					}
-					// Duration stuff
-					curStart = event.getTimeStamp();
-					event.setTimeStamp(curStart - measureStart);
-					cur.add(event);
-				} else if(curStart != -1 && (event.getStatus() == (byte) 0x90 && event.getData()[1] == 0) || event.getStatus() == (byte) 0x80) {
-					long noteDur = event.getTimeStamp() - curStart;
-					if(noteDur == 455 || noteDur == 479)
-						noteDur = 479;
-					else if(noteDur == 227 || noteDur == 239)
-						noteDur = 239;
-					else if(noteDur == 113 || noteDur == 119)
-						noteDur = 119;
-					Note n = new Note(curStart, event.getTimeStamp(), event.getData()[0]);
-					notes.add(n);
-					long dur = curStart + noteDur - measureStart;
-					event.setTimeStamp(curStart + noteDur - measureStart);
-					curStart = -1;
-					cur.add(event);
-					if(dur >= maxDur || maxDur - dur < 1.0 / 32 * res) {
-						boolean tie = false;
-						if(dur > maxDur) {
-							cur.remove(cur.size() - 1);
-							cur.add(new MIDIEvent(maxDur, (byte) 0x90, new byte[] { events.get(j - 1).getData()[0], (byte) 0x00 }));
-							tie = true;
-						}
-						ArrayList<MIDIEvent> toAdd = new ArrayList<MIDIEvent>();
-						for(int k = 0; k < cur.size(); k++) {
-							toAdd.add(cur.get(k));
+					byte nextPitch = 0;
+					for(int k = j + 2; k < events.size(); k++) {
+						if(events.get(k).getStatus() == (byte) 0x90 && data[1] != 0) {
+							nextPitch = events.get(k).getData()[0];
+							break;
 						}
-						measures.add(new Measure(toAdd, res));
-						cur.clear();
-						if(tie) {
-							cur.add(new MIDIEvent(0, (byte) 0x90, events.get(j - 1).getData()));
-							cur.add(new MIDIEvent(dur - maxDur, (byte) 0x90, event.getData()));
-						}
-						measureStart += maxDur + 1;
 					}
-				} else if(event.getStatus() == (byte) 0xFF && event.getData()[0] == 0x59) {
-					sharps = event.getData()[2];
-					if(event.getData()[3] == 1)
-						isMajor = false;
-				} else if(event.getStatus() == (byte) 0xFF && event.getData()[0] == 0x51) {
-					byte[] data = event.getData();
-					tempo = (int) (0.00012 * new BigInteger(new byte[] { data[2], data[3], data[4] }).intValue());
-				} else if(event.getStatus() == (byte) 0xC0) {
-					instruments[0] = event.getData()[0];
+					p.addPitch(key, nextPitch);
 				}
 			}
-			length = events.get(events.size() - 1).getTimeStamp();
-			ArrayList<MIDIEvent> toAdd1 = new ArrayList<MIDIEvent>();
-			for(int k = 0; k < cur.size(); k++) {
-				toAdd1.add(cur.get(k));
-			}
-			measures.add(new Measure(toAdd1, res));
 			
-			for(int i = 1; i < tracks.size(); i++) {
-				cur.clear();
-				measureStart = 0;
-				ArrayList<MIDIEvent> supportEvents = tracks.get(i).getEvents();
-				curStart = -1;
-				int mCount = prevMeasureSize;
-				for(int j = 0; j < supportEvents.size(); j++) {
-					MIDIEvent event = supportEvents.get(j);
-					int status = Byte.toUnsignedInt(event.getStatus());
-					if(status / 16 == 0x9 && event.getData()[1] != 0) {
-						if(event.getTimeStamp() > measureStart + res * 4 - 1) {
-							toAdd1.clear();
-							for(int k = 0; k < cur.size(); k++) {
-								toAdd1.add(cur.get(k));
-							}
-							if(mCount < measures.size())
-								measures.get(mCount).addSupport(toAdd1);
-							mCount++;
-							measureStart += maxDur + 1;
-							j--;
-							continue;
-						}
-						noteSum[i] += event.getData()[0];
-						volTotal[i] += event.getData()[1];
-						noteTotal[i]++;
-						if(event.getData()[0] > max[i])
-							max[i] = event.getData()[0];
-						if(event.getData()[0] < min[i])
-							min[i] = event.getData()[0];
-						curStart = event.getTimeStamp();
-						event.setTimeStamp(curStart - measureStart);
-						cur.add(event);
-					} else if(curStart != -1 && (status / 16 == 0x9 && event.getData()[1] == 0) || event.getStatus() == (byte) 0x80) {
-						long noteDur = event.getTimeStamp() - curStart;
-						if(noteDur == 455 || noteDur == 479)
-							noteDur = 479;
-						else if(noteDur == 227 || noteDur == 239)
-							noteDur = 239;
-						else if(noteDur == 113 || noteDur == 119)
-							noteDur = 119;
-						long dur = curStart + noteDur - measureStart;
-						event.setTimeStamp(curStart + noteDur - measureStart);
-						curStart = -1;
-						cur.add(event);
-						if(dur >= maxDur || maxDur - dur < 1.0 / 32 * res) {
-							boolean tie = false;
-							if(dur > maxDur) {
-								cur.remove(cur.size() - 1);
-								cur.add(new MIDIEvent(maxDur, (byte) (0x9 * 16 + j + 1), new byte[] { supportEvents.get(j - 1).getData()[0], (byte) 0x00 }));
-								tie = true;
-							}
-							ArrayList<MIDIEvent> toAdd = new ArrayList<MIDIEvent>();
-							for(int k = 0; k < cur.size(); k++) {
-								toAdd.add(cur.get(k));
-							}
-							if(mCount < measures.size())
-								measures.get(mCount).addSupport(toAdd);
-							mCount++;
-							cur.clear();
-							if(tie) {
-								cur.add(new MIDIEvent(0, (byte) (0x9 * 16 + j + 1), supportEvents.get(j - 1).getData()));
-								cur.add(new MIDIEvent(dur - maxDur, (byte) (0x9 * 16 + j + 1), event.getData()));
-							}
-							measureStart += maxDur + 1;
-						}
-					} else if(status / 16 == 0xC) {
-						instruments[i] = event.getData()[0];
-					}
-				}
-				toAdd1.clear();
-				for(int k = 0; k < cur.size(); k++) {
-					toAdd1.add(cur.get(k));
-				}
-				if(mCount < measures.size())
-					measures.get(mCount).addSupport(toAdd1);
-				long trackLength = supportEvents.get(supportEvents.size() - 1).getTimeStamp();
-				while(trackLength < length) {
-					mCount++;
-					measures.get(mCount).addSupport(new ArrayList<MIDIEvent>());
-					trackLength += res * 4;
-				}
-				mCount = prevMeasureSize;
-				
+			@Override public void noteOff(int j, byte pitch, byte velocity, long duration) {
+				p.grams[0].add(prevVelocity, velocity);
+				prevVelocity = velocity;
 			}
-			prevMeasureSize = measures.size();
-			this.measures.addAll(measures);
 			
-			/*
-			 * ArrayList<byte[]> chords = new ArrayList<byte[]>(); for(int i = 0; i < measures.size(); i++) { byte[][] c = measures.get(i).getChords(sharps, isMajor); for(int j = 0; j < c.length; j++) { chords.add(c[j]); } } chordList.add(chords);
-			 */
-			// Phrase location
-			int l = notes.size() - 1;
-			for(int i = 0; i < l; i++) {
-				long stop = notes.get(i).getStop();
-				long start = notes.get(i + 1).getStart();
-				if(start - stop > 1)
-					notes.add(new Note(stop + 1, start - 1, (byte) -127));
+			@Override public void otherEvent(int j, MIDIEvent event) {
+				byte[] data = event.getData();
+				if(event.getStatus() == (byte) 0xFF && data[0] == 0x59) {
+					p.keyFound = true;
+					p.sharps = data[2];
+					if(data[3] == 1)
+						p.isMajor = false;
+				} else if(event.getStatus() == (byte) 0xFF && data[0] == 0x51) {
+					p.tempoFound = true;
+					p.tempo = (int) (0.00012 * new BigInteger(new byte[] { data[2], data[3], data[4] }).intValue());
+				} else if(Byte.toUnsignedInt(event.getStatus()) / 16 == 0xC)
+					p.instruments[0] = data[0];
 			}
-			Collections.sort(notes);
-			
-			phrases = findPhrasesMeasure();
-			
+		});
+		p.toKeyRelative();
+		ArrayList<Measure> measures = new ArrayList<Measure>();
+		for(int i = 0; i < melody.getMeasureCount(); i++) {
+			measures.add(new Measure(melody.getMeasure(i), res, segmenter.getBarLength(melody.getMeasureStart(i))));
+			monitor.report(ProgressMonitor.MEASURES, i + 1, melody.getMeasureCount());
 		}
-		Collections.sort(pitches);
 		
-		noteAverage = new long[noteSum.length];
-		volAverage = new long[volTotal.length];
-		for(int i = 0; i < noteAverage.length; i++) {
-			noteAverage[i] = noteSum[i] / noteTotal[i];
-			noteAverage[i] -= noteAverage[i] % 12;
-			volAverage[i] = volTotal[i] / noteTotal[i];
+		List<SegmentedTrack> supports = IntStream.range(1, tracks.size()).parallel().mapToObj(i -> analyzeSupport(p, i, trackEvents.get(i), segmenter, monitor)).collect(Collectors.toList());
+		for(int i = 0; i < supports.size(); i++) {
+			SegmentedTrack support = supports.get(i);
+			for(int j = 0; j < measures.size(); j++) {
+				measures.get(j).addSupport(j < support.getMeasureCount() ? support.getMeasure(j): new ArrayList<MIDIEvent>());
+			}
+		}
+		ArrayList<Measure> common = new ArrayList<Measure>();
+		for(int i = 0; i < measures.size(); i++) {
+			if(segmenter.getBarLength(melody.getMeasureStart(i)) == 4 * res)
+				common.add(measures.get(i));
 		}
+		p.phrases = findPhrasesMeasure(common, res, p.sharps, p.isMajor);
+		return p;
 	}
 	
-	private ArrayList<Phrase> combinePhrases(ArrayList<Phrase> phrases, int curId) {
-		for(int i = 0; i < phrases.size() - 1; i++) {
-			int[] window = new int[2];
-			window[0] = phrases.get(i).getId();
-			window[1] = phrases.get(i + 1).getId();
-			boolean match = false;
-			int deriv = 1;
-			for(int j = i + 2; j < phrases.size() - 1; j++) {
-				int[] ids = { phrases.get(j).getId(), phrases.get(j + 1).getId() };
-				if(Math.abs(ids[0] / 100) == window[0] / 100 && Math.abs(ids[1] / 100) == window[1] / 100 && phrases.get(j).supportMatch(phrases.get(j + 1))) {
-					if(!match) {
-						PhraseTree pt = PhraseTree.construct(phrases.remove(i), phrases.remove(i), curId);
-						phrases.add(i, pt);
-					}
-					int dif = (match ? 0: 1);
-					if(ids[0] == window[0] && ids[1] == window[1]) {
-						phrases.add(j - dif, PhraseTree.construct(phrases.remove(j - dif), phrases.remove(j - dif), curId));
-					} else if(ids[0] > 0 && ids[1] > 0) {
-						PhraseTree pt = PhraseTree.construct(phrases.remove(j - dif), phrases.remove(j - dif), curId + deriv);
-						boolean added = false;
-						for(int k = 0; k < phrases.size(); k++) {
-							Phrase p = phrases.get(k);
-							if(pt.getStringId().equals(p.getStringId())) {
-								pt.setId(p.getId());
-								added = true;
-								phrases.add(j - dif, pt);
-								break;
-							}
-						}
-						if(!added) {
-							phrases.add(j - dif, pt);
-							deriv++;
-						}
-					} else {
-						PhraseTree pt = PhraseTree.construct(phrases.remove(j - dif), phrases.remove(j - dif), -curId);
-						boolean added = false;
-						for(int k = 0; k < phrases.size(); k++) {
-							Phrase p = phrases.get(k);
-							if(pt.getStringId().equals(p.getStringId())) {
-								pt.setId(p.getId());
-								added = true;
-								phrases.add(j - dif, pt);
-								break;
-							}
+	/**
+	 * Analyzes a single support track. Only the statistics of the given track are written to the partial model, so several support tracks of the same file can be analyzed at once.
+	 * 
+	 * @param p the partial model to add the statistics of the track to
+	 * @param i the index of the track
+	 * @param events the events of the track
+	 * @param segmenter the segmenter to split the track into measures with
+	 * @param monitor the monitor to check for cancellation every 1024 events
+	 * @return the events of the track split into measures
+	 */
+	private static SegmentedTrack analyzeSupport(PartialModel p, int i, ArrayList<MIDIEvent> events, MeasureSegmenter segmenter, ProgressMonitor monitor) {
+		return segmenter.split(events, new NoteListener() {
+			
+			private int prevVelocity = NoteGrams.START;
+			private int seen = 0;
+			
+			@Override public void noteOn(int j, MIDIEvent event) {
+				count();
+				byte[] data = event.getData();
+				p.noteSum[i] += data[0];
+				p.volTotal[i] += data[1];
+				p.noteTotal[i]++;
+				if(data[0] > p.max[i])
+					p.max[i] = data[0];
+				if(data[0] < p.min[i])
+					p.min[i] = data[0];
+			}
+			
+			@Override public void noteOff(int j, byte pitch, byte velocity, long duration) {
+				count();
+				p.grams[i].add(prevVelocity, velocity);
+				prevVelocity = velocity;
+			}
+			
+			@Override public void otherEvent(int j, MIDIEvent event) {
+				count();
+				if(Byte.toUnsignedInt(event.getStatus()) / 16 == 0xC)
+					p.instruments[i] = event.getData()[0];
+			}
+			
+			private void count() {
+				seen++;
+				if(seen % 1024 == 0)
+					monitor.checkCancelled();
+			}
+		});
+	}
+	
+	/**
+	 * Groups repeated pairs of phrases into trees. Every round finds the first pair of adjacent phrases whose ids are repeated later by a pair with matching supports, and replaces that pair and every later non-overlapping match with a tree. Matches with the same ids get the id of the first tree, other matches get a derived id or the id of an equal tree that already exists. Rounds are repeated with the next id until no pair is repeated.
+	 * 
+	 * Pairs are looked up by their packed ids, so every round takes time linear in the number of phrases.
+	 * 
+	 * @param phrases the phrases to group, in order
+	 * @param curId the id of the first tree
+	 * @return the grouped phrases
+	 */
+	private static ArrayList<Phrase> combinePhrases(ArrayList<Phrase> phrases, int curId) {
+		while(true) {
+			int n = phrases.size();
+			int[] ids = new int[n];
+			for(int k = 0; k < n; k++) {
+				ids[k] = phrases.get(k).getId();
+			}
+			Boolean[] support = new Boolean[Math.max(0, n - 1)];
+			HashMap<Long, ArrayList<Integer>> pairs = new HashMap<Long, ArrayList<Integer>>();
+			for(int j = 0; j < n - 1; j++) {
+				Long key = pack(Math.abs(ids[j] / 100), Math.abs(ids[j + 1] / 100));
+				ArrayList<Integer> at = pairs.get(key);
+				if(at == null) {
+					at = new ArrayList<Integer>();
+					pairs.put(key, at);
+				}
+				at.add(j);
+			}
+			HashMap<Long, Integer> lastMatch = new HashMap<Long, Integer>();
+			int i = -1;
+			for(int k = 0; k < n - 1 && i == -1; k++) {
+				Long key = pack(ids[k] / 100, ids[k + 1] / 100);
+				Integer last = lastMatch.get(key);
+				if(last == null) {
+					last = -1;
+					ArrayList<Integer> at = pairs.get(key);
+					for(int m = (at == null ? -1: at.size() - 1); m >= 0; m--) {
+						if(supportMatch(phrases, support, at.get(m))) {
+							last = at.get(m);
+							break;
 						}
-						if(!added) {
-							phrases.add(j - dif, pt);
-							deriv++;
+					}
+					lastMatch.put(key, last);
+				}
+				if(last >= k + 2)
+					i = k;
+			}
+			if(i == -1)
+				return phrases;
+			
+			ArrayList<Phrase> out = new ArrayList<Phrase>(n);
+			for(int k = 0; k < i; k++) {
+				out.add(phrases.get(k));
+			}
+			out.add(PhraseTree.construct(phrases.get(i), phrases.get(i + 1), curId));
+			int window0 = ids[i] / 100;
+			int window1 = ids[i + 1] / 100;
+			HashMap<IdKey, Phrase> outFirst = null;
+			int outIndexed = 0;
+			HashMap<IdKey, ArrayDeque<Integer>> rest = null;
+			int deriv = 1;
+			int j = i + 2;
+			while(j < n - 1) {
+				if(Math.abs(ids[j] / 100) != window0 || Math.abs(ids[j + 1] / 100) != window1 || !supportMatch(phrases, support, j)) {
+					out.add(phrases.get(j));
+					j++;
+					continue;
+				}
+				if(ids[j] == ids[i] && ids[j + 1] == ids[i + 1]) {
+					out.add(PhraseTree.construct(phrases.get(j), phrases.get(j + 1), curId));
+					j += 2;
+					continue;
+				}
+				PhraseTree pt = PhraseTree.construct(phrases.get(j), phrases.get(j + 1), (ids[j] > 0 && ids[j + 1] > 0 ? curId + deriv: -curId));
+				if(outFirst == null) {
+					outFirst = new HashMap<IdKey, Phrase>();
+					rest = new HashMap<IdKey, ArrayDeque<Integer>>();
+					for(int k = i + 2; k < n; k++) {
+						IdKey sid = new IdKey(phrases.get(k));
+						ArrayDeque<Integer> at = rest.get(sid);
+						if(at == null) {
+							at = new ArrayDeque<Integer>();
+							rest.put(sid, at);
 						}
+						at.add(k);
+					}
+				}
+				for(; outIndexed < out.size(); outIndexed++) {
+					Phrase p = out.get(outIndexed);
+					outFirst.putIfAbsent(new IdKey(p), p);
+				}
+				IdKey sid = new IdKey(pt);
+				Phrase same = outFirst.get(sid);
+				if(same == null) {
+					ArrayDeque<Integer> at = rest.get(sid);
+					while(at != null && !at.isEmpty() && at.peekFirst() < j + 2) {
+						at.pollFirst();
 					}
-					if(!match)
-						j--;
-					match = true;
-					i--;
+					if(at != null && !at.isEmpty())
+						same = phrases.get(at.peekFirst());
 				}
+				if(same != null)
+					pt.setId(same.getId());
+				else
+					deriv++;
+				out.add(pt);
+				j += 2;
 			}
-			if(match) {
-				curId += 100;
-				return combinePhrases(phrases, curId);
+			for(; j < n; j++) {
+				out.add(phrases.get(j));
 			}
+			phrases = out;
+			curId += 100;
 		}
-		return phrases;
 	}
 	
-	private ArrayList<Phrase> findPhrasesMeasure() {
+	private static boolean supportMatch(ArrayList<Phrase> phrases, Boolean[] support, int j) {
+		if(support[j] == null)
+			support[j] = phrases.get(j).supportMatch(phrases.get(j + 1));
+		return support[j];
+	}
+	
+	private static long pack(int a, int b) {
+		return (long) a << 32 | (b & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * The ids of the children of a phrase in order, used to find phrases with the same structure without building their String ids
+	 */
+	private static final class IdKey {
+		
+		private final int[] ids;
+		
+		IdKey(Phrase p) {
+			ids = p.getChildIds();
+		}
+		
+		@Override public int hashCode() {
+			return Arrays.hashCode(ids);
+		}
+		
+		@Override public boolean equals(Object o) {
+			return o instanceof IdKey && Arrays.equals(ids, ((IdKey) o).ids);
+		}
+	}
+	
+	private static ArrayList<Phrase> findPhrasesMeasure(ArrayList<Measure> measures, int res, int sharps, boolean isMajor) {
 		ArrayList<Phrase> phrases = new ArrayList<Phrase>();
+		PhraseIndex index = new PhraseIndex(res);
 		int curId = 100;
 		for(int i = 0; i < measures.size(); i++) {
 			Measure m = measures.get(i);
@@ -384,7 +450,7 @@ public class SimpleCompositions {
 					sups = addRests(sups);
 					sup.add(j, sups);
 				}
-				int id = m.getPhrase(phrases);
+				int id = m.getPhrase(index);
 				if(id == -1) {
 					phrases.add(new Phrase(notes, sup, curId));
 					curId += 100;
@@ -392,6 +458,7 @@ public class SimpleCompositions {
 					phrases.add(new Phrase(notes, sup, id));
 				}
 				phrases.get(phrases.size() - 1).generateChords(sharps, isMajor);
+				index.add(phrases.get(phrases.size() - 1));
 			}
 		}
 		
@@ -406,7 +473,7 @@ public class SimpleCompositions {
 		return phrases;
 	}
 	
-	private ArrayList<Note> addRests(ArrayList<Note> notes) {
+	private static ArrayList<Note> addRests(ArrayList<Note> notes) {
 		long prevEnd = 0;
 		for(int i = 0; i < notes.size(); i++) {
 			Note n = notes.get(i);
@@ -427,311 +494,135 @@ public class SimpleCompositions {
 	 * @return the MIDIFile object representing the generated song
 	 */
 	public MIDIFile generateSong(int measureDepth) {
-		for(int i = 0; i < measures.size(); i++) {
-			if(measures.get(i).getNotes().size() == 0) {
-				measures.remove(i);
-				i--;
+		return generateSong(measureDepth, new SplittableRandom());
+	}
+	
+	/**
+	 * Generates a new song. Generating with the same seed and measure depth from the same input always produces the same song.
+	 * 
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param seed the seed of the random number generator
+	 * 		
+	 * @return the MIDIFile object representing the generated song
+	 */
+	public MIDIFile generateSong(int measureDepth, long seed) {
+		return generateSong(measureDepth, new SplittableRandom(seed));
+	}
+	
+	/**
+	 * Generates a new song
+	 * 
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param random the random number generator used for every random decision made while generating
+	 * 		
+	 * @return the MIDIFile object representing the generated song
+	 */
+	public MIDIFile generateSong(int measureDepth, SplittableRandom random) {
+		return getModel().generateSong(measureDepth, random);
+	}
+	
+	/**
+	 * Generates a new song, reporting every generated phrase and written measure to the monitor
+	 * 
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param random the random number generator used for every random decision made while generating
+	 * @param monitor the monitor to report progress to and check for cancellation
+	 * 		
+	 * @return the MIDIFile object representing the generated song
+	 * @throws java.util.concurrent.CancellationException if the monitor was cancelled
+	 */
+	public MIDIFile generateSong(int measureDepth, SplittableRandom random, ProgressMonitor monitor) {
+		return getModel().generateSong(measureDepth, random, monitor);
+	}
+	
+	private static ArrayList<Phrase> simplifyPhrases(ArrayList<Phrase> phrases, int curId) {
+		// combine non repeated phrases: every run of phrases that are not trees becomes one tree, except that the last phrase of the song is never grouped
+		int n = phrases.size();
+		int[] runLength = new int[n];
+		int maxLength = 0;
+		int start = -1;
+		for(int i = 0; i <= n; i++) {
+			if(i < n && !(phrases.get(i) instanceof PhraseTree)) {
+				if(start == -1)
+					start = i;
+			} else if(start != -1) {
+				runLength[start] = Math.min(i, n - 1) - start;
+				maxLength = Math.max(maxLength, runLength[start]);
+				start = -1;
 			}
 		}
-		MIDIFile output = new MIDIFile();
-		output.setResolution(res);
-		MusicTrack[] tracks = new MusicTrack[1 + phrases.get(0).getSupports().size()];
-		for(int i = 0; i < tracks.length; i++) {
-			tracks[i] = new MusicTrack();
+		// longer runs get lower ids, runs of the same length are numbered in order
+		int[] count = new int[maxLength + 2];
+		for(int i = 0; i < n; i++) {
+			if(runLength[i] > 1)
+				count[runLength[i]]++;
 		}
-		tracks[0].addEvent(TimeSignature.construct(0, (byte) 4, (byte) 4));
-		Tempo t = Tempo.construct(0, tempo);
-		tracks[0].addEvent(t);
-		for(int i = 0; i < tracks.length; i++) {
-			tracks[i].changeInstrument(0, 0, instruments[i]);
+		int[] next = new int[maxLength + 2];
+		for(int len = maxLength - 1; len > 1; len--) {
+			next[len] = next[len + 1] + count[len + 1];
 		}
-		TreeSet<Integer> negIds = new TreeSet<Integer>();
-		TreeSet<Integer> ids = new TreeSet<Integer>();
-		for(int i = 0; i < phrases.size(); i++) {
-			Phrase p = phrases.get(i);
-			if(p instanceof PhraseTree) {
-				int[] toAdd = ((PhraseTree) p).getChildIds();
-				for(int j = 0; j < toAdd.length; j++) {
-					ids.add(toAdd[j]);
-				}
+		ArrayList<Phrase> re = new ArrayList<Phrase>(n);
+		for(int i = 0; i < n; i++) {
+			int len = runLength[i];
+			if(len > 1) {
+				int id = curId + 100 * next[len]++;
+				re.add(PhraseTree.construct(phrases.subList(i, i + len), id));
+				i += len - 1;
 			} else
-				ids.add(p.getId());
-		}
-		@SuppressWarnings("unchecked") TreeSet<Integer> idsDeriv = (TreeSet<Integer>) ids.clone();
-		Iterator<Integer> it = ids.iterator();
-		while(it.hasNext()) {
-			int val = it.next();
-			if(val % 100 != 0 && val > 0) {
-				ids.remove(val);
-				it = ids.iterator();
-			} else if(val < 0) {
-				ids.remove(val);
-				negIds.add(val);
-				it = ids.iterator();
-			}
-		}
-		
-		Iterator<Integer> itDeriv = idsDeriv.iterator();
-		while(itDeriv.hasNext()) {
-			int val = itDeriv.next();
-			if(val % 100 == 0 || val < 0) {
-				idsDeriv.remove(val);
-				itDeriv = idsDeriv.iterator();
-			}
-		}
-		long pos = 0;
-		int idx = 0;
-		HashSet<Phrase> measures = new HashSet<Phrase>();
-		for(int i = 0; i < phrases.size(); i++) {
-			Phrase p = phrases.get(i);
-			if(p instanceof PhraseTree && p.getId() % 100 == 0 && p.getId() > 0)
-				measures.addAll(((PhraseTree) p).getChildren());
-			else if(p.getId() % 100 == 0 && p.getId() > 0)
-				measures.add(p);
+				re.add(phrases.get(i));
 		}
-		ArrayList<Double> avgDur = new ArrayList<Double>();
-		Iterator<Phrase> mIt = new TreeSet<Phrase>(measures).iterator();
-		while(mIt.hasNext()) {
-			Phrase p = mIt.next();
-			avgDur.add(p.getAverageDuration());
-		}
-		Phrase[] phrases = new Phrase[ids.size()];
-		it = ids.iterator();
-		while(it.hasNext()) {
-			int val = it.next();
-			Phrase[] m = new Phrase[measures.size()];
-			measures.toArray(m);
-			Phrase p = null;
-			Phrase[] r = new Phrase[measureDepth];
-			for(int i = 0; i < r.length; i++) {
-				r[i] = m[(int) (Math.random() * m.length)];
-			}
-			double avg = avgDur.get(idx);
-			for(int i = 0; i < r.length; i++) {
-				if(p == null)
-					p = r[i];
-				else if(Math.abs(p.getAverageDuration() - avg) > Math.abs(r[i].getAverageDuration() - avg))
-					p = r[i];
-			}
-			measures.remove(p);
-			ArrayList<Note> notes = p.getNotes();
-			int len = 0;
-			for(int k = 0; k < notes.size(); k++) {
-				if(notes.get(k).getPitch() != -1)
-					len++;
-			}
-			ArrayList<Byte> pitches = getPitches(null, len);
-			len = 0;
-			for(int k = 0; k < notes.size(); k++) {
-				Note n = notes.get(k);
-				if(n.getPitch() != -1) {
-					n.setPitch(pitches.get(len));
-					
-					len++;
-				}
-				long dur = n.getDuration();
-				n.setStart(pos);
-				n.setStop(pos + dur);
-				pos += dur + 1;
-			}
-			phrases[idx++] = new Phrase(notes, val, p.getChords());
-		}
-		
-		Phrase[] negPhrases = new Phrase[negIds.size()];
-		Iterator<Integer> negIt = negIds.iterator();
-		idx = 0;
-		while(negIt.hasNext()) {
-			int val = negIt.next();
-			int base = val * -1;
-			base = base / 100 * 100;
-			Phrase p = null;
-			for(int i = 0; i < phrases.length; i++) {
-				if(phrases[i].getId() == base) {
-					p = phrases[i];
-					break;
-				}
-			}
-			ArrayList<Note> notes = p.getNotes();
-			int len = 0;
-			for(int k = 0; k < notes.size(); k++) {
-				if(notes.get(k).getPitch() != -1)
-					len++;
-			}
-			ArrayList<Byte> pitches = getPitches(null, len);
-			len = 0;
-			for(int k = 0; k < notes.size(); k++) {
-				Note n = notes.get(k);
-				if(n.getPitch() != -1) {
-					n.setPitch(pitches.get(len));
-					
-					len++;
-				}
-				long dur = n.getDuration();
-				n.setStart(pos);
-				n.setStop(pos + dur);
-				pos += dur + 1;
-			}
-			negPhrases[idx++] = new Phrase(notes, val, p.getChords());
-		}
-		
-		Phrase[] dPhrases = new Phrase[idsDeriv.size()];
-		itDeriv = idsDeriv.iterator();
-		idx = 0;
-		while(itDeriv.hasNext()) {
-			int val = itDeriv.next();
-			Phrase p = phrases[val / 100 - 1];
-			dPhrases[idx] = p.mutate(sharps, isMajor, val);
-			idx++;
-		}
-		HashMap<Integer, Phrase> phraseSet = new HashMap<Integer, Phrase>();
-		for(int i = 0; i < dPhrases.length; i++) {
-			phraseSet.put(dPhrases[i].getId(), dPhrases[i]);
-		}
-		for(int i = 0; i < phrases.length; i++) {
-			phraseSet.put(phrases[i].getId(), phrases[i]);
-		}
-		for(int i = 0; i < negPhrases.length; i++) {
-			phraseSet.put(negPhrases[i].getId(), negPhrases[i]);
-		}
-		
-		ArrayList<Phrase> actual = this.phrases;
-		ArrayList<Phrase> song = new ArrayList<Phrase>();
-		for(int i = 0; i < actual.size(); i++) {
-			Phrase p = actual.get(i);
-			int[] childs = p.getChildIds();
-			Phrase[] create = new Phrase[childs.length];
-			for(int j = 0; j < childs.length; j++) {
-				create[j] = phraseSet.get(childs[j]);
-			}
-			Phrase toAdd;
-			if(childs.length >= 2) {
-				toAdd = PhraseTree.construct(create[0], create[1], p.getId());
-				for(int j = 2; j < create.length; j++) {
-					toAdd = PhraseTree.construct(toAdd, create[j], p.getId());
-				}
-			} else if(create.length == 1)
-				toAdd = create[0];
-			else
-				continue;
-			song.add(toAdd);
-		}
-		long ipos = 0;
-		for(int i = 0; i < song.size(); i++) {
-			pos = ipos;
-			Phrase p = song.get(i);
-			p.generateSupports(tracks.length - 1, noteAverage, sharps, isMajor, max, min);
-			ArrayList<Note> mel = p.getNotes();
-			for(int j = 0; j < mel.size(); j++) {
-				Note n = mel.get(j).clone();
-				long dur = n.getDuration();
-				n.setStart(pos);
-				n.setStop(pos + dur);
-				tracks[0].addNote(n, (byte) volAverage[0]);
-				pos += 1 + dur;
-			}
-			int m = (int) ((pos + 1) / (4 * res));
-			ArrayList<ArrayList<Note>> supports = p.getSupports();
-			for(int j = 0; j < supports.size(); j++) {
-				pos = ipos;
-				ArrayList<Note> sup = supports.get(j);
-				for(int k = 0; k < sup.size(); k++) {
-					Note n = sup.get(k).clone();
-					long dur = n.getDuration();
-					n.setStart(pos);
-					n.setStop(pos + dur);
-					tracks[j + 1].addNote(n, (byte) volAverage[j + 1]);
-					pos += 1 + dur;
-				}
-			}
-			ipos = m * res * 4;
-		}
-		for(int i = 0; i < tracks.length; i++) {
-			output.addTrack(tracks[i]);
-		}
-		return output;
-		
+		return re;
 	}
 	
-	private ArrayList<Byte> getPitches(ArrayList<Byte> re, int length) {
-		if(re == null || re.size() < depth) {
-			Pitch start = pitches.get((int) (Math.random() * pitches.size()));
-			re = new ArrayList<Byte>();
-			byte[] pre = start.getPrecede();
-			for(int i = 0; i < pre.length; i++) {
-				if(i < length)
-					re.add(pre[i]);
-			}
-		}
-		if(re.size() == length)
-			return re;
-		for(int i = 0; i < pitches.size(); i++) {
-			byte[] pre = pitches.get(i).getPrecede();
-			boolean found = true;
-			for(int j = 0; j < depth; j++) {
-				if(pre[j] != re.get(re.size() - j - 1)) {
-					found = false;
-					break;
-				}
-			}
-			if(found) {
-				int s = re.size();
-				ArrayList<Byte> ignore = new ArrayList<Byte>();
-				do {
-					byte pitch = pitches.get(i).getFollowPitch(ignore);
-					if(pitch == -1)
-						return re;
-					re.add(pitch);
-					re = getPitches(re, length);
-					if(s == re.size())
-						ignore.add(pitch);
-					else
-						return re;
-				} while(s == re.size());
-				break;
-			}
-		}
-		re.remove(re.size() - 1);
-		return getPitches(re, length);
+	/**
+	 * Generates several songs in parallel. See CompositionModel.generateSongs(int, int, long).
+	 * 
+	 * @param count the number of songs to generate
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param seed the seed that the random number generator of every song is split from
+	 * 		
+	 * @return an ordered stream of the generated songs
+	 */
+	public Stream<MIDIFile> generateSongs(int count, int measureDepth, long seed) {
+		return getModel().generateSongs(count, measureDepth, seed);
 	}
 	
-	private ArrayList<Phrase> simplifyPhrases(ArrayList<Phrase> phrases, int curId) {
-		// combine non repeated phrases
-		for(int size = phrases.size() - 1; size > 1; size--) {
-			for(int i = 0; i < phrases.size() - size; i++) {
-				boolean good = true;
-				for(int j = i; j < i + size; j++) {
-					Phrase p = phrases.get(j);
-					if(p instanceof PhraseTree) {
-						good = false;
-						break;
-					}
-				}
-				if(good) {
-					PhraseTree pt = PhraseTree.construct(phrases.remove(i), phrases.remove(i), curId);
-					phrases.add(i, pt);
-					for(int j = 2; j < size; j++) {
-						pt = (PhraseTree) phrases.remove(i);
-						pt = PhraseTree.construct(pt, phrases.remove(i), curId);
-						phrases.add(i, pt);
-					}
-					curId += 100;
+	/**
+	 * Generates several songs in parallel and encodes each as the bytes of a .mid file. See CompositionModel.generateEncodedSongs(int, int, long).
+	 * 
+	 * @param count the number of songs to generate
+	 * @param measureDepth scanning depth for rhythm generation
+	 * @param seed the seed that the random number generator of every song is split from
+	 * 		
+	 * @return an ordered stream of the encoded songs
+	 */
+	public Stream<byte[]> generateEncodedSongs(int count, int measureDepth, long seed) {
+		return getModel().generateEncodedSongs(count, measureDepth, seed);
+	}
+	
+	/**
+	 * Gets the immutable model produced by training. The model can be shared between threads that generate songs at the same time. Models returned before more files are trained are not changed by the training. The model is built once, by the first thread that asks for it, and later calls return the same model until more files are trained.
+	 * 
+	 * @return the trained model, or null if no files have been trained
+	 */
+	public CompositionModel getModel() {
+		CompositionModel re = model;
+		if(re == null) {
+			synchronized(this) {
+				re = model;
+				if(re == null) {
+					if(partial.res == -1)
+						return null;
+					re = partial.toModel();
+					model = re;
 				}
 			}
 		}
-		return phrases;
+		return re;
 	}
 	
 	public String toString() {
-		String re = "";
-		re += ("Major:\t" + isMajor);
-		re += ("\nSharps:\t" + sharps);
-		re += ("\nTempo:\t" + tempo);
-		re += ("\nPitches:\n");
-		for(int i = 0; i < pitches.size(); i++) {
-			re += "\n" + pitches.get(i);
-		}
-		return re;
-		
+		return getModel().toString();
 	}
 	
 	/**
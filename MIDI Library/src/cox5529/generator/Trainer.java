@@ -0,0 +1,171 @@
+package cox5529.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import cox5529.midi.MIDIFile;
+import cox5529.midi.ProgressMonitor;
+
+/**
+ * Headless entry point for training a model in several processes. Every process trains one shard of a list of files into a partial model file, and the partial files are then reduced into a single model snapshot.
+ * 
+ * <pre>
+ * Trainer train &lt;depth&gt; &lt;shard&gt; &lt;shardCount&gt; &lt;fileList&gt; &lt;output&gt; [relative] [-max &lt;n&gt;] [-checkpoint &lt;file&gt;] [-every &lt;n&gt;]
+ * Trainer reduce &lt;output&gt; &lt;partial&gt;...
+ * </pre>
+ * 
+ * The file list holds one MIDI file per line. Shard n trains every line whose index leaves a remainder of n when divided by the shard count. Partial files are merged in the order they are given to the reducer.
+ * 
+ * With -max, the shard keeps at most n pitch contexts and drops the rarest once the limit is reached, as PartialModel.setMaxContexts does. The bound is kept in the partial file and the checkpoint.
+ * 
+ * With -checkpoint, the progress of the shard is saved every n files (100 unless -every is given). Running the same command again after a crash resumes from the checkpoint and skips the files that were already processed. The checkpoint is deleted once the partial model has been written.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public class Trainer {
+	
+	/**
+	 * Runs the trainer
+	 * 
+	 * @param args the command and its arguments
+	 */
+	public static void main(String[] args) {
+		try {
+			if(args.length >= 6 && args[0].equals("train")) {
+				boolean keyRelative = false;
+				int maxContexts = 0;
+				String checkpoint = null;
+				int interval = 100;
+				for(int i = 6; i < args.length; i++) {
+					if(args[i].equals("relative"))
+						keyRelative = true;
+					else if(args[i].equals("-max") && i + 1 < args.length)
+						maxContexts = Integer.parseInt(args[++i]);
+					else if(args[i].equals("-checkpoint") && i + 1 < args.length)
+						checkpoint = args[++i];
+					else if(args[i].equals("-every") && i + 1 < args.length)
+						interval = Integer.parseInt(args[++i]);
+				}
+				train(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), args[4], args[5], keyRelative, maxContexts, checkpoint, interval, ProgressMonitor.NONE);
+			} else if(args.length >= 3 && args[0].equals("reduce"))
+				reduce(args[1], Arrays.copyOfRange(args, 2, args.length));
+			else {
+				System.err.println("Usage: Trainer train <depth> <shard> <shardCount> <fileList> <output> [relative] [-max <n>] [-checkpoint <file>] [-every <n>]");
+				System.err.println("       Trainer reduce <output> <partial>...");
+				System.exit(2);
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Trains one shard of a list of files and writes the partial model. Files are analyzed one at a time, so only the partial model is kept in memory. Files that cannot be read are reported and skipped.
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 * @param shard the index of the shard to train
+	 * @param shardCount the number of shards the list is split into
+	 * @param fileList a file holding one MIDI file per line
+	 * @param output the partial model file to write
+	 * @param keyRelative true to store melody pitches relative to the key of each file
+	 * @return the partial model of the shard
+	 * @throws IOException if an I/O error occurs reading the list or writing the partial model
+	 */
+	public static PartialModel train(int depth, int shard, int shardCount, String fileList, String output, boolean keyRelative) throws IOException {
+		return train(depth, shard, shardCount, fileList, output, keyRelative, 0, null, 0, ProgressMonitor.NONE);
+	}
+	
+	/**
+	 * Trains one shard of a list of files and writes the partial model, saving a checkpoint every few files. If the checkpoint already exists, training resumes from it and the files it lists are skipped. The checkpoint is deleted once the partial model has been written.
+	 * 
+	 * @param depth the depth to scan when generating a pitch
+	 * @param shard the index of the shard to train
+	 * @param shardCount the number of shards the list is split into
+	 * @param fileList a file holding one MIDI file per line
+	 * @param output the partial model file to write
+	 * @param keyRelative true to store melody pitches relative to the key of each file
+	 * @param maxContexts the largest number of pitch contexts to keep, at least 2, or 0 to keep every context
+	 * @param checkpoint the checkpoint file, or null to train without checkpoints
+	 * @param interval the number of files to process between checkpoints
+	 * @param monitor the monitor to report processed files to and check for cancellation. A cancelled run leaves its last checkpoint behind to resume from.
+	 * @return the partial model of the shard
+	 * @throws IOException if an I/O error occurs reading the list or the checkpoint, writing the partial model or the checkpoint, or if the checkpoint was written with a different depth, mode or bound
+	 * @throws IllegalArgumentException if maxContexts is 1
+	 * @throws java.util.concurrent.CancellationException if the monitor was cancelled
+	 */
+	public static PartialModel train(int depth, int shard, int shardCount, String fileList, String output, boolean keyRelative, int maxContexts, String checkpoint, int interval, ProgressMonitor monitor) throws IOException {
+		List<String> files = Files.readAllLines(Paths.get(fileList), StandardCharsets.UTF_8);
+		Path cp = (checkpoint == null ? null: Paths.get(checkpoint));
+		Checkpoint state;
+		if(cp != null && Files.exists(cp)) {
+			state = Checkpoint.load(cp);
+			PartialModel saved = state.getPartial();
+			if(saved.depth != depth || saved.keyRelative != keyRelative || saved.maxContexts != Math.max(maxContexts, 0))
+				throw new IOException("Checkpoint \"" + cp + "\" was written with different training settings.");
+		} else {
+			PartialModel empty = new PartialModel(depth, keyRelative);
+			empty.setMaxContexts(maxContexts);
+			state = new Checkpoint(empty);
+		}
+		PartialModel p = state.getPartial();
+		int sinceSave = 0;
+		int shardSize = (files.size() - shard + shardCount - 1) / shardCount;
+		for(int i = shard; i < files.size(); i += shardCount) {
+			String name = files.get(i).trim();
+			if(name.isEmpty() || state.isProcessed(name))
+				continue;
+			try {
+				p.merge(SimpleCompositions.analyze(depth, keyRelative, MIDIFile.read(new File(name), false, monitor), monitor));
+			} catch(CancellationException e) {
+				throw e;
+			} catch(IOException | RuntimeException e) {
+				System.err.println("Skipping \"" + name + "\": " + e);
+			}
+			state.addProcessed(name);
+			monitor.report(ProgressMonitor.FILES, state.getProcessedCount(), shardSize);
+			sinceSave++;
+			if(cp != null && interval > 0 && sinceSave >= interval) {
+				state.save(cp);
+				sinceSave = 0;
+			}
+		}
+		p.save(Paths.get(output));
+		if(cp != null)
+			Files.deleteIfExists(cp);
+		return p;
+	}
+	
+	/**
+	 * Merges partial model files and writes the resulting model snapshot
+	 * 
+	 * @param output the model snapshot to write
+	 * @param partials the partial model files to merge
+	 * @return the merged model
+	 * @throws IllegalArgumentException if no partial model holds a trained file
+	 * @throws IOException if an I/O error occurs reading a partial model or writing the snapshot
+	 */
+	public static CompositionModel reduce(String output, String... partials) throws IOException {
+		PartialModel p = null;
+		for(int i = 0; i < partials.length; i++) {
+			PartialModel next = PartialModel.load(Paths.get(partials[i]));
+			if(p == null)
+				p = next;
+			else
+				p.merge(next);
+		}
+		if(p == null || p.res == -1)
+			throw new IllegalArgumentException("The partial models hold no trained files.");
+		CompositionModel model = p.toModel();
+		model.save(Paths.get(output));
+		return model;
+	}
+}
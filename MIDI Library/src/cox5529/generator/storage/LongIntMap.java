@@ -0,0 +1,144 @@
+package cox5529.generator.storage;
+
+import java.util.Arrays;
+
+/**
+ * Hash table from non-negative long keys to int counts. Keys and counts are stored in primitive arrays with open addressing, so no objects are created per entry.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class LongIntMap {
+	
+	private static final long EMPTY = -1;
+	
+	private long[] keys;
+	private int[] values;
+	private int size;
+	
+	/**
+	 * Constructs an empty map
+	 */
+	public LongIntMap() {
+		this(16);
+	}
+	
+	/**
+	 * Constructs an empty map that can hold the given number of keys before it grows
+	 * 
+	 * @param expected the number of keys expected
+	 */
+	public LongIntMap(int expected) {
+		int capacity = 16;
+		while(capacity * 3 < expected * 4) {
+			capacity *= 2;
+		}
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new int[capacity];
+	}
+	
+	/**
+	 * Constructs a copy of a map that shares no data with the original
+	 * 
+	 * @param m the map to copy
+	 */
+	public LongIntMap(LongIntMap m) {
+		keys = m.keys.clone();
+		values = m.values.clone();
+		size = m.size;
+	}
+	
+	/**
+	 * Adds to the count of a key
+	 * 
+	 * @param key the key, must not be negative
+	 * @param count the amount to add
+	 */
+	public void add(long key, int count) {
+		if(key < 0)
+			throw new IllegalArgumentException("Key " + key + " is negative.");
+		int slot = find(key);
+		if(keys[slot] == EMPTY) {
+			if((size + 1) * 4 > keys.length * 3) {
+				grow();
+				slot = find(key);
+			}
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] += count;
+	}
+	
+	/**
+	 * Gets the count of a key
+	 * 
+	 * @param key the key
+	 * @return the count of the key, or 0 if it was never added
+	 */
+	public int get(long key) {
+		int slot = find(key);
+		return keys[slot] == EMPTY ? 0: values[slot];
+	}
+	
+	/**
+	 * Gets the number of keys in this map
+	 * 
+	 * @return the number of keys
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Gets every key in this map, in no particular order
+	 * 
+	 * @return the keys of this map
+	 */
+	public long[] getKeys() {
+		long[] re = new long[size];
+		int k = 0;
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != EMPTY)
+				re[k++] = keys[i];
+		}
+		return re;
+	}
+	
+	/**
+	 * Adds every count of another map to this one
+	 * 
+	 * @param m the map to add
+	 */
+	public void addAll(LongIntMap m) {
+		for(int i = 0; i < m.keys.length; i++) {
+			if(m.keys[i] != EMPTY)
+				add(m.keys[i], m.values[i]);
+		}
+	}
+	
+	private int find(long key) {
+		int mask = keys.length - 1;
+		long h = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while(keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		values = new int[oldValues.length * 2];
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != EMPTY) {
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
@@ -3,9 +3,12 @@ package cox5529.generator.storage;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
 import cox5529.midi.Helper;
 import cox5529.midi.event.MIDIEvent;
+import cox5529.midi.track.ChordTimeline;
+import cox5529.midi.track.NotePairer;
 
 /**
  * Class used to store measures.
@@ -15,10 +18,14 @@ import cox5529.midi.event.MIDIEvent;
  */
 public class Measure {
 	
-	private ArrayList<MIDIEvent> events;
+	private List<MIDIEvent> events;
 	private ArrayList<Note> notes;
 	private ArrayList<ArrayList<Note>> supNotes;
-	private ArrayList<ArrayList<MIDIEvent>> supports;
+	private ArrayList<List<MIDIEvent>> supports;
+	private int res;
+	private long onsetMask;
+	private long contourPrint;
+	private long exactPrint;
 	
 	/**
 	 * Constructs a measure object.
@@ -26,57 +33,62 @@ public class Measure {
 	 * @param events the MIDIEvents that make up the measure
 	 * @param res the resolution of this measure
 	 */
-	public Measure(ArrayList<MIDIEvent> events, int res) {
-		Collections.sort(events);
-		this.supports = new ArrayList<ArrayList<MIDIEvent>>();
+	public Measure(List<MIDIEvent> events, int res) {
+		this(events, res, 4 * res);
+	}
+	
+	/**
+	 * Constructs a measure object.
+	 * 
+	 * @param events the MIDIEvents that make up the measure. The list is kept rather than copied and is never changed; it is only copied if it is not in order or a note is cut off by the edge of the measure.
+	 * @param res the resolution of this measure
+	 * @param length the length of this measure in MIDI clocks
+	 */
+	public Measure(List<MIDIEvent> events, int res, long length) {
+		for(int i = 1; i < events.size(); i++) {
+			if(events.get(i - 1).compareTo(events.get(i)) > 0) {
+				events = new ArrayList<MIDIEvent>(events);
+				Collections.sort(events);
+				break;
+			}
+		}
+		this.supports = new ArrayList<List<MIDIEvent>>();
 		notes = new ArrayList<Note>();
-		long start = 0;
 		if(events.size() > 0) {
 			MIDIEvent event = events.get(0);
 			int status = Byte.toUnsignedInt(event.getStatus());
 			if(status / 0x10 == 0x9 && event.getData()[1] == 0) {
 				System.out.println("note off");
+				events = new ArrayList<MIDIEvent>(events);
 				events.add(0, new MIDIEvent(0, (byte) status, new byte[] { event.getData()[0], events.get(1).getData()[1] }));
 			}
 			event = events.get(events.size() - 1);
 			status = Byte.toUnsignedInt(event.getStatus());
 			if(status / 0x10 == 0x9 && event.getData()[1] != 0) {
 				System.out.println("note on");
-				events.add(new MIDIEvent(4 * res - 1, (byte) status, new byte[] { event.getData()[0], 0 }));
+				events = new ArrayList<MIDIEvent>(events);
+				events.add(new MIDIEvent(length - 1, (byte) status, new byte[] { event.getData()[0], 0 }));
 			}
 		}
 		this.events = events;
-		for(int i = 0; i < events.size(); i++) {
-			MIDIEvent event = events.get(i);
-			int status = Byte.toUnsignedInt(event.getStatus());
-			if(status / 0x10 == 0x9 && event.getData()[1] != 0) {
-				start = event.getTimeStamp();
-			} else if(status / 0x10 == 0x9 && event.getData()[1] == 0) {
-				notes.add(new Note(start, event.getTimeStamp(), event.getData()[0]));
-			}
-		}
+		new NotePairer().pair(events, (start, stop, pitch, velocity, channel) -> notes.add(new Note(start, stop, pitch)));
 		supNotes = new ArrayList<ArrayList<Note>>();
+		this.res = res;
+		onsetMask = Rhythm.getOnsetMask(notes, res);
+		contourPrint = getContourPrint(notes);
+		exactPrint = getExactPrint(notes);
 	}
 	
 	/**
 	 * Adds the supporting melody to this measure
 	 * 
-	 * @param events the notes in the supporting measure
+	 * @param events the notes in the supporting measure, in order. The list is kept rather than copied.
 	 */
-	public void addSupport(ArrayList<MIDIEvent> events) {
+	public void addSupport(List<MIDIEvent> events) {
 		supports.add(events);
 		ArrayList<Note> notes = new ArrayList<Note>();
 		if(events.size() != 0) {
-			long start = 0;
-			for(int i = 0; i < events.size(); i++) {
-				MIDIEvent event = events.get(i);
-				int status = Byte.toUnsignedInt(event.getStatus());
-				if(status / 0x10 == 0x9 && event.getData()[1] != 0) {
-					start = event.getTimeStamp();
-				} else if(status / 0x10 == 0x9 && event.getData()[1] == 0) {
-					notes.add(new Note(start, event.getTimeStamp(), event.getData()[0]));
-				}
-			}
+			new NotePairer().pair(events, (start, stop, pitch, velocity, channel) -> notes.add(new Note(start, stop, pitch)));
 		} else if(this.notes.size() > 0) {
 			long start = this.notes.get(0).getStart();
 			long stop = this.notes.get(this.notes.size() - 1).getStop();
@@ -101,7 +113,7 @@ public class Measure {
 	}
 	
 	/**
-	 * Gets the chords within this measure.
+	 * Gets the chords within this measure. A chord starts whenever the set of pitch classes sounding in the melody and the supporting tracks changes.
 	 * 
 	 * @param sharps number of sharps in the key
 	 * @param isMajor true if the key is major
@@ -109,52 +121,26 @@ public class Measure {
 	 * @return the chords within this measure represented as a 2D array of bytes, each row representing a chord.
 	 */
 	public byte[][] getChords(int sharps, boolean isMajor) {
-		byte[][] re;
-		int minNotes = 900;
-		ArrayList<MIDIEvent> minTrack = null;
-		for(int i = 0; i < supports.size(); i++) {
-			ArrayList<MIDIEvent> track = supports.get(i);
-			if(track.size() / 2 < minNotes) {
-				minNotes = track.size() / 2;
-				minTrack = track;
-			}
-		}
-		if(minNotes == 0)
-			return new byte[][] {};
-		re = new byte[minNotes][];
-		// find chord notes
-		long[] stamps = new long[minNotes];
-		int index = 0;
-		for(int i = 0; i < minTrack.size(); i++) {
-			int status = Byte.toUnsignedInt(minTrack.get(i).getStatus());
-			if(status / 0x10 == 0x9 && minTrack.get(i).getData()[1] != 0) {
-				stamps[index] = minTrack.get(i).getTimeStamp();
-				index++;
-			}
-		}
-		for(int i = 0; i < minNotes; i++) {
-			byte[] pitches = new byte[supports.size() + 1];
-			// loop through each track
-			for(int j = events.size() - 1; j >= 0; j--) {
-				if(events.get(j).getTimeStamp() <= stamps[i]) {
-					pitches[0] = events.get(j).getData()[0];
-					break;
-				}
-			}
-			for(int j = 0; j < supports.size(); j++) {
-				ArrayList<MIDIEvent> track = supports.get(j);
-				for(int k = track.size() - 1; k >= 0; k--) {
-					if(track.get(k).getTimeStamp() <= stamps[i]) {
-						pitches[j + 1] = track.get(k).getData()[0];
-						break;
-					}
+		ArrayList<List<MIDIEvent>> tracks = new ArrayList<List<MIDIEvent>>();
+		tracks.add(events);
+		tracks.addAll(supports);
+		ChordTimeline timeline = new ChordTimeline(tracks);
+		ArrayList<byte[]> re = new ArrayList<byte[]>();
+		for(int i = 0; i < timeline.getSegmentCount(); i++) {
+			int mask = timeline.getMask(i);
+			if(mask == 0)
+				continue;
+			byte[] pitches = new byte[Integer.bitCount(mask)];
+			int index = 0;
+			for(int pc = 0; pc < 12; pc++) {
+				if((mask & (1 << pc)) != 0) {
+					pitches[index] = (byte) (60 + pc); // getChord folds it down to the octave of the key
+					index++;
 				}
 			}
-			// get numeral and add to array
-			re[i] = Helper.getChord(sharps, isMajor, pitches);
+			re.add(Helper.getChord(sharps, isMajor, pitches));
 		}
-		// return
-		return re;
+		return re.toArray(new byte[re.size()][]);
 	}
 	
 	/**
@@ -183,6 +169,15 @@ public class Measure {
 		return re;
 	}
 	
+	/**
+	 * Gets the onset mask of the melody of this measure
+	 * 
+	 * @return the onset mask of the melody, as computed by Rhythm.getOnsetMask
+	 */
+	public long getOnsetMask() {
+		return onsetMask;
+	}
+	
 	/**
 	 * Gets the average speed in MIDI clocks for part of a measure
 	 * 
@@ -224,35 +219,30 @@ public class Measure {
 	 * @return the ID of the phrase in this measure
 	 */
 	public int getPhrase(ArrayList<Phrase> phrases) {
-		if(phrases.size() != 0) {
-			for(int i = 0; i < phrases.size(); i++) {
-				int id = phrases.get(i).getId();
-				if(id > 0 && id % 100 == 0) {
-					int val = isPhrase(phrases.get(i));
-					if(val == 0)
-						return id;
-					else if(val == 1) {
-						for(int j = phrases.size() - 1; j >= 0; j--) {
-							int pId = phrases.get(j).getId();
-							if(pId / 100 == id / 100 && pId > 0) {
-								id = pId;
-								break;
-							}
-						}
-						return id + 1;
-					} else if(val == 2) {
-						int aId = -id;
-						for(int j = 0; j < phrases.size(); j++) {
-							int pId = phrases.get(j).getId();
-							if(pId == aId)
-								aId--;
-						}
-						return aId;
-					}
-				}
-			}
+		return getPhrase(new PhraseIndex(phrases, res));
+	}
+	
+	/**
+	 * Gets the ID of the phrase segment represented by this measure. Only the first base phrase with the same onset mask as this measure can match it, so it is looked up by the mask instead of comparing the measure to every phrase.
+	 * 
+	 * @param index the index of the phrases in the current song
+	 * @return the ID of the phrase in this measure
+	 */
+	public int getPhrase(PhraseIndex index) {
+		PhraseIndex.Entry e = index.getFirstWithRhythm(onsetMask);
+		if(e == null)
+			return -1; // phrases does not contain this measure
+		int id = e.phrase.getId();
+		int val = isPhrase(e);
+		if(val == 0)
+			return id;
+		else if(val == 1)
+			return index.getLastInFamily(id) + 1;
+		int aId = -id;
+		while(index.containsId(aId)) {
+			aId--;
 		}
-		return -1; // phrases does not contain this measure
+		return aId;
 	}
 	
 	/**
@@ -264,7 +254,7 @@ public class Measure {
 		ArrayList<ArrayList<MIDIEvent>> re = new ArrayList<ArrayList<MIDIEvent>>();
 		for(int i = 0; i < supports.size(); i++) {
 			ArrayList<MIDIEvent> arr = new ArrayList<MIDIEvent>();
-			ArrayList<MIDIEvent> sup = supports.get(i);
+			List<MIDIEvent> sup = supports.get(i);
 			for(int j = 0; j < sup.size(); j++) {
 				arr.add(sup.get(j));
 			}
@@ -282,10 +272,10 @@ public class Measure {
 		return supNotes;
 	}
 	
-	private int isPhrase(Phrase p) { // -1 for false, 0 for true, 1 for deriv, 2 for same rhythm
-		ArrayList<Note> pNotes = p.getNotes();
+	private int isPhrase(PhraseIndex.Entry e) { // 0 for true, 1 for deriv, 2 for same rhythm
+		ArrayList<Note> pNotes = e.notes;
 		// is same?
-		if(pNotes.size() == notes.size()) {
+		if(e.exact == exactPrint && pNotes.size() == notes.size()) {
 			boolean equal = true;
 			for(int i = 0; i < pNotes.size(); i++) {
 				if(!pNotes.get(i).equals(notes.get(i))) {
@@ -293,15 +283,13 @@ public class Measure {
 					break;
 				}
 			}
-			if(equal && isSimilarSupport(p))
+			if(equal && isSimilarSupport(e.phrase))
 				return 0;
 		}
 		// is deriv?
-		if(isPitchDeriv(pNotes, notes) && isSimilarSupport(p))
+		if(e.contour == contourPrint && isPitchDeriv(pNotes, notes) && isSimilarSupport(e.phrase))
 			return 1;
-		if(isSameRhythm(pNotes, notes))
-			return 2;
-		return -1;
+		return 2;
 	}
 	
 	private boolean isPitchDeriv(ArrayList<Note> pNotes, ArrayList<Note> notes) {
@@ -341,8 +329,47 @@ public class Measure {
 		return false;
 	}
 	
+	/**
+	 * Gets the fingerprint of the rhythm and pitch contour of a list of notes. Every pitch is taken relative to the lowest pitch of the list, so lists that are transpositions of each other have the same fingerprint.
+	 * 
+	 * @param notes the notes to fingerprint
+	 * @return the fingerprint of the durations and relative pitches of the notes
+	 */
+	static long getContourPrint(ArrayList<Note> notes) {
+		byte min = Byte.MAX_VALUE;
+		for(int i = 0; i < notes.size(); i++) {
+			min = (byte) Math.min(min, notes.get(i).getPitch());
+		}
+		long h = notes.size();
+		for(int i = 0; i < notes.size(); i++) {
+			h = h * 31 + notes.get(i).getDuration();
+			h = h * 31 + (byte) (notes.get(i).getPitch() - min);
+		}
+		return mix(h);
+	}
+	
+	/**
+	 * Gets the fingerprint of the durations and pitches of a list of notes. Lists of equal notes have the same fingerprint.
+	 * 
+	 * @param notes the notes to fingerprint
+	 * @return the fingerprint of the durations and pitches of the notes
+	 */
+	static long getExactPrint(ArrayList<Note> notes) {
+		long h = notes.size();
+		for(int i = 0; i < notes.size(); i++) {
+			h = h * 31 + notes.get(i).getDuration();
+			h = h * 31 + notes.get(i).getPitch();
+		}
+		return mix(h);
+	}
+	
+	private static long mix(long h) {
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		return h ^ (h >>> 33);
+	}
+	
 	private boolean isSimilarSupport(Phrase p) { // chords + same rhythms
-		ArrayList<ArrayList<Note>> pSupports = p.getSupports();
+		ArrayList<ArrayList<Note>> pSupports = p.supports;
 		for(int i = 0; i < pSupports.size(); i++) {
 			ArrayList<Note> pList = pSupports.get(i);
 			ArrayList<Note> sList = supNotes.get(i);
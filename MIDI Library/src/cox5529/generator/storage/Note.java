@@ -139,7 +139,7 @@ public class Note implements Comparable<Note> {
 	}
 	
 	/**
-	 * Gets the number of beats since the beginning of the song for this note
+	 * Gets the number of beats since the beginning of the song for this note. Assumes 4/4 time.
 	 * 
 	 * @param res the resolution of this note
 	 * @return the number of beats since the beginning of the song
@@ -159,7 +159,7 @@ public class Note implements Comparable<Note> {
 	}
 	
 	/**
-	 * Gets the beat number on which this note begins
+	 * Gets the beat number on which this note begins. Assumes 4/4 time.
 	 * 
 	 * @param res the resolution of the note
 	 * @return the beat number on which this note begins
@@ -0,0 +1,147 @@
+package cox5529.generator.storage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Velocity model of the notes of a track. The model counts how often each velocity followed the velocity of the note before it in the same track, so generated tracks keep the dynamics of the training data. Velocities are counted exactly, from 1 to 127.
+ * 
+ * A pair of velocities is packed into a single long key of a LongIntMap. Every note is also counted after the ANY context so that a velocity can still be chosen after a velocity that was never followed by another note.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class NoteGrams {
+	
+	/**
+	 * Context of the first note of a track
+	 */
+	public static final int START = 0x80;
+	/**
+	 * Context that counts every note regardless of the note before it
+	 */
+	public static final int ANY = 0x81;
+	
+	private final LongIntMap counts;
+	
+	/**
+	 * Constructs an empty model
+	 */
+	public NoteGrams() {
+		counts = new LongIntMap();
+	}
+	
+	/**
+	 * Constructs a copy of a model that shares no data with the original
+	 * 
+	 * @param g the model to copy
+	 */
+	public NoteGrams(NoteGrams g) {
+		counts = new LongIntMap(g.counts);
+	}
+	
+	private NoteGrams(LongIntMap counts) {
+		this.counts = counts;
+	}
+	
+	/**
+	 * Counts the velocity of a note
+	 * 
+	 * @param prev the velocity of the note before, or START if it is the first note
+	 * @param velocity the velocity of the note
+	 */
+	public void add(int prev, byte velocity) {
+		counts.add(key(prev, velocity), 1);
+		counts.add(key(ANY, velocity), 1);
+	}
+	
+	/**
+	 * Adds every count of another model to this one
+	 * 
+	 * @param g the model to add
+	 */
+	public void addAll(NoteGrams g) {
+		counts.addAll(g.counts);
+	}
+	
+	/**
+	 * Gets the number of distinct velocity pairs counted by this model
+	 * 
+	 * @return the number of keys in the table
+	 */
+	public int size() {
+		return counts.size();
+	}
+	
+	/**
+	 * Chooses the velocity of a note. Velocities are weighted by how often they followed the previous velocity. If the previous velocity was never followed by another note, every counted velocity is used instead, and if no note was counted the fallback is used.
+	 * 
+	 * @param prev the velocity of the note before, or START if it is the first note
+	 * @param fallback the velocity to use if no note was counted
+	 * @param random the random number generator to use
+	 * @return the velocity of the note
+	 */
+	public byte getVelocity(int prev, byte fallback, SplittableRandom random) {
+		int[] weights = new int[128];
+		int total = fill(prev, weights);
+		if(total == 0)
+			total = fill(ANY, weights);
+		if(total == 0)
+			return fallback;
+		int r = random.nextInt(total);
+		for(int v = 1; v < weights.length; v++) {
+			r -= weights[v];
+			if(r < 0)
+				return (byte) v;
+		}
+		return fallback;
+	}
+	
+	/**
+	 * Writes this model in a form that can be read by read
+	 * 
+	 * @param out the stream to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		long[] keys = counts.getKeys();
+		Arrays.sort(keys);
+		out.writeInt(keys.length);
+		for(int i = 0; i < keys.length; i++) {
+			out.writeLong(keys[i]);
+			out.writeInt(counts.get(keys[i]));
+		}
+	}
+	
+	/**
+	 * Reads a model written by write
+	 * 
+	 * @param in the buffer to read from
+	 * @return the model
+	 */
+	public static NoteGrams read(ByteBuffer in) {
+		int size = in.getInt();
+		LongIntMap counts = new LongIntMap(size);
+		for(int i = 0; i < size; i++) {
+			long key = in.getLong();
+			counts.add(key, in.getInt());
+		}
+		return new NoteGrams(counts);
+	}
+	
+	private int fill(int prev, int[] weights) {
+		int total = 0;
+		for(int v = 1; v < weights.length; v++) {
+			weights[v] = counts.get(key(prev, (byte) v));
+			total += weights[v];
+		}
+		return total;
+	}
+	
+	private static long key(int prev, byte velocity) {
+		return (long) prev << 8 | (velocity & 0x7F);
+	}
+}
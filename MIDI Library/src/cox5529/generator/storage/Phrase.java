@@ -5,6 +5,7 @@ package cox5529.generator.storage;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.SplittableRandom;
 
 import cox5529.midi.Helper;
 
@@ -35,6 +36,21 @@ public class Phrase implements Comparable<Phrase> {
 		
 	}
 	
+	/**
+	 * Constructs a new Phrase object
+	 * 
+	 * @param notes the notes within this phrase
+	 * @param supports the supporting notes for this phrase
+	 * @param id the identifying name of this phrase (i.e) 10 instead of A, 11 instead of A' and so on
+	 * @param chords chord progression in this phrase
+	 */
+	public Phrase(ArrayList<Note> notes, ArrayList<ArrayList<Note>> supports, int id, ArrayList<byte[]> chords) {
+		this.notes = notes;
+		this.supports = supports;
+		this.id = id;
+		this.chords = chords;
+	}
+	
 	/**
 	 * Constructs a new Phrase object
 	 * 
@@ -51,28 +67,31 @@ public class Phrase implements Comparable<Phrase> {
 	/**
 	 * Generates the support measures for this Phrase
 	 * 
-	 * @param supCount the number of support measures
+	 * @param supCount the number of support measures. A phrase with no support measures is left without supports, and chord tones beyond the number of support measures are left out.
 	 * @param avgOctave the average octave of the instruments
 	 * @param sharps the number of sharps in the key signature, negative if flats
 	 * @param isMajor true if the key is major
 	 * @param max maximum pitches for every track
 	 * @param min minimum pitches for every track
+	 * @param random the random number generator used to assign chord tones to tracks
 	 */
-	public void generateSupports(int supCount, long[] avgOctave, int sharps, boolean isMajor, byte[] max, byte[] min) {
+	public void generateSupports(int supCount, long[] avgOctave, int sharps, boolean isMajor, byte[] max, byte[] min, SplittableRandom random) {
 		supports = new ArrayList<ArrayList<Note>>();
 		for(int i = 0; i < supCount; i++) {
 			supports.add(new ArrayList<Note>());
 		}
+		if(supCount == 0)
+			return;
 		int idx = 0;
 		long pos = 0;
-		int diSupIndex = (int) (supCount * Math.random());
-		int triSupIndex = (int) (supCount * Math.random());
-		int quaSupIndex = (int) (supCount * Math.random());
-		while(triSupIndex == diSupIndex) {
-			triSupIndex = (int) (supCount * Math.random());
+		int diSupIndex = random.nextInt(supCount);
+		int triSupIndex = random.nextInt(supCount);
+		int quaSupIndex = random.nextInt(supCount);
+		while(supCount > 1 && triSupIndex == diSupIndex) {
+			triSupIndex = random.nextInt(supCount);
 		}
-		while(quaSupIndex == diSupIndex || quaSupIndex == triSupIndex) {
-			quaSupIndex = (int) (supCount * Math.random());
+		while(supCount > 2 && (quaSupIndex == diSupIndex || quaSupIndex == triSupIndex)) {
+			quaSupIndex = random.nextInt(supCount);
 		}
 		ArrayList<Note> qua = supports.get(quaSupIndex);
 		ArrayList<Note> tri = supports.get(triSupIndex);
@@ -109,7 +128,7 @@ public class Phrase implements Comparable<Phrase> {
 					p += 12;
 				di.add(new Note(pos, pos + dur, p));
 			}
-			if(chord.length > 2) {
+			if(chord.length > 2 && supCount > 1) {
 				byte p = Helper.increaseToAverageOctave(chord[2], (byte) avgOctave[triSupIndex + 1]);
 				while(p > max[triSupIndex + 1])
 					p -= 12;
@@ -117,7 +136,7 @@ public class Phrase implements Comparable<Phrase> {
 					p += 12;
 				tri.add(new Note(pos, pos + dur, p));
 			}
-			if(chord.length > 3) {
+			if(chord.length > 3 && supCount > 2) {
 				byte p = Helper.increaseToAverageOctave(chord[3], (byte) avgOctave[quaSupIndex + 1]);
 				while(p > max[quaSupIndex + 1])
 					p -= 12;
@@ -136,12 +155,18 @@ public class Phrase implements Comparable<Phrase> {
 	}
 	
 	/**
-	 * Gets the chord progressions for this Phrase
+	 * Gets the chord progressions for this Phrase. The list is a copy, so changing it does not change this phrase.
 	 * 
-	 * @return the chord progressions for this Phrase
+	 * @return the chord progressions for this Phrase, or null if they have not been generated
 	 */
 	public ArrayList<byte[]> getChords() {
-		return chords;
+		if(chords == null)
+			return null;
+		ArrayList<byte[]> re = new ArrayList<byte[]>();
+		for(int i = 0; i < chords.size(); i++) {
+			re.add(chords.get(i).clone());
+		}
+		return re;
 	}
 	
 	/**
@@ -166,36 +191,57 @@ public class Phrase implements Comparable<Phrase> {
 				}
 			}
 		}
+		if(minI == -1)
+			return; // no support is playing, so there are no chords
 		long[] starts = new long[minNotes];
 		for(int i = 0; i < starts.length; i++) {
 			starts[i] = supports.get(minI).get(i).getStart();
 		}
+		int[][] next = new int[supports.size() + 1][];
+		next[0] = getNextOnsets(notes, starts);
+		for(int i = 0; i < supports.size(); i++) {
+			next[i + 1] = getNextOnsets(supports.get(i), starts);
+		}
 		for(int k = 0; k < starts.length; k++) {
-			ArrayList<Byte> pitches = new ArrayList<Byte>();
-			for(int i = 0; i < notes.size(); i++) {
-				if(notes.get(i).getStart() >= starts[k] && notes.get(i).getPitch() != -1) {
-					pitches.add(Helper.getLowestOctave(sharps, isMajor, notes.get(i).getPitch()));
-					break;
-				}
+			int count = 0;
+			for(int i = 0; i < next.length; i++) {
+				if(next[i][k] != -1)
+					count++;
 			}
-			for(int i = 0; i < supports.size(); i++) {
-				ArrayList<Note> sup = supports.get(i);
-				for(int j = 0; j < sup.size(); j++) {
-					if(sup.get(j).getStart() >= starts[k] && sup.get(j).getPitch() != -1) {
-						pitches.add(Helper.getLowestOctave(sharps, isMajor, sup.get(j).getPitch()));
-						break;
-					}
+			byte[] pitches = new byte[count];
+			int index = 0;
+			for(int i = 0; i < next.length; i++) {
+				if(next[i][k] != -1) {
+					ArrayList<Note> track = (i == 0 ? notes: supports.get(i - 1));
+					pitches[index] = Helper.getLowestOctave(sharps, isMajor, track.get(next[i][k]).getPitch());
+					index++;
 				}
 			}
-			Byte[] toAdd = new Byte[pitches.size()];
-			pitches.toArray(toAdd);
-			byte[] real = new byte[toAdd.length];
-			Arrays.sort(toAdd);
-			for(int i = 0; i < toAdd.length; i++) {
-				real[i] = toAdd[i];
+			Arrays.sort(pitches);
+			chords.add(pitches);
+		}
+	}
+	
+	private static int[] getNextOnsets(ArrayList<Note> notes, long[] stamps) { // first note in the list starting at or after each stamp, -1 if none
+		int[] index = new int[notes.size()];
+		long[] max = new long[notes.size()];
+		int count = 0;
+		for(int i = 0; i < notes.size(); i++) {
+			Note n = notes.get(i);
+			if(n.getPitch() != -1 && (count == 0 || n.getStart() > max[count - 1])) {
+				index[count] = i;
+				max[count] = n.getStart();
+				count++;
 			}
-			chords.add(real);
 		}
+		int[] re = new int[stamps.length];
+		for(int k = 0; k < stamps.length; k++) {
+			int pos = Arrays.binarySearch(max, 0, count, stamps[k]);
+			if(pos < 0)
+				pos = -pos - 1;
+			re[k] = (pos < count ? index[pos]: -1);
+		}
+		return re;
 	}
 	
 	/**
@@ -205,7 +251,7 @@ public class Phrase implements Comparable<Phrase> {
 	 * @return true if the instrumentation is the same
 	 */
 	public boolean supportMatch(Phrase p) {
-		ArrayList<ArrayList<Note>> pSupports = p.getSupports();
+		ArrayList<ArrayList<Note>> pSupports = p.supports;
 		for(int i = 0; i < pSupports.size(); i++) {
 			ArrayList<Note> pList = pSupports.get(i);
 			ArrayList<Note> sList = supports.get(i);
@@ -244,11 +290,12 @@ public class Phrase implements Comparable<Phrase> {
 	 * @param sharps the number of sharps in a key. If there are flats, number of flats * -1
 	 * @param isMajor true if the key is major
 	 * @param id the id of the mutated phrase
+	 * @param random the random number generator used to pick the direction of the mutation
 	 * @return mutated version of this phrase
 	 */
-	public Phrase mutate(int sharps, boolean isMajor, int id) {
+	public Phrase mutate(int sharps, boolean isMajor, int id, SplittableRandom random) {
 		ArrayList<Note> mel = new ArrayList<Note>();
-		double rand = Math.random();
+		double rand = random.nextDouble();
 		if(rand > 0.5) { // raise all notes by 1
 			mel = raise(notes, sharps, isMajor);
 		} else { // lower all notes by 1
@@ -294,6 +341,16 @@ public class Phrase implements Comparable<Phrase> {
 		return (sum + 0.0) / notes.size();
 	}
 	
+	/**
+	 * Gets the onset mask of the melody in this phrase
+	 * 
+	 * @param res the resolution of this phrase
+	 * @return the onset mask of the melody, as computed by Rhythm.getOnsetMask
+	 */
+	public long getOnsetMask(int res) {
+		return Rhythm.getOnsetMask(notes, res);
+	}
+	
 	/**
 	 * Gets the list of notes in this phrase
 	 * 
@@ -308,12 +365,32 @@ public class Phrase implements Comparable<Phrase> {
 	}
 	
 	/**
-	 * Gets the supporting notes for this phrase
+	 * Gets the supporting notes for this phrase. The lists and notes are copies, so changing them does not change this phrase.
 	 * 
-	 * @return the supporting notes for this phrase
+	 * @return the supporting notes for this phrase, or null if it has none
 	 */
 	public ArrayList<ArrayList<Note>> getSupports() {
-		return supports;
+		if(supports == null)
+			return null;
+		ArrayList<ArrayList<Note>> re = new ArrayList<ArrayList<Note>>();
+		for(int i = 0; i < supports.size(); i++) {
+			ArrayList<Note> sup = supports.get(i);
+			ArrayList<Note> copy = new ArrayList<Note>();
+			for(int j = 0; j < sup.size(); j++) {
+				copy.add(sup.get(j).clone());
+			}
+			re.add(copy);
+		}
+		return re;
+	}
+	
+	/**
+	 * Gets the number of supporting tracks of this phrase without copying them
+	 * 
+	 * @return the number of supporting tracks, or 0 if it has none
+	 */
+	public int getSupportCount() {
+		return (supports == null ? 0: supports.size());
 	}
 	
 	/**
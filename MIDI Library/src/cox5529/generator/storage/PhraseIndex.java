@@ -0,0 +1,115 @@
+package cox5529.generator.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Index of the phrases found so far in a song, used to find the phrase a measure repeats without comparing the measure to every phrase. Base phrases are looked up by their onset mask, and the fingerprints of their exact notes and pitch contour are kept so that most comparisons are decided without looking at the notes. Rests are left out of the notes of an indexed phrase, so that a measure with gaps between its notes can match the phrase it was stored as.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class PhraseIndex {
+	
+	private final HashMap<Long, Entry> byRhythm;
+	private final HashMap<Integer, Integer> lastInFamily;
+	private final HashSet<Integer> ids;
+	private final int res;
+	
+	/**
+	 * Constructs an empty index
+	 * 
+	 * @param res the resolution of the phrases
+	 */
+	public PhraseIndex(int res) {
+		this.res = res;
+		byRhythm = new HashMap<Long, Entry>();
+		lastInFamily = new HashMap<Integer, Integer>();
+		ids = new HashSet<Integer>();
+	}
+	
+	/**
+	 * Constructs an index of the given phrases
+	 * 
+	 * @param phrases the phrases to index, in the order they were found
+	 * @param res the resolution of the phrases
+	 */
+	public PhraseIndex(List<Phrase> phrases, int res) {
+		this(res);
+		for(int i = 0; i < phrases.size(); i++) {
+			add(phrases.get(i));
+		}
+	}
+	
+	/**
+	 * Adds a phrase to the end of the index. The notes of the phrase must not change afterwards.
+	 * 
+	 * @param p the phrase to add
+	 */
+	public void add(Phrase p) {
+		int id = p.getId();
+		ids.add(id);
+		if(id > 0)
+			lastInFamily.put(id / 100, id);
+		if(id > 0 && id % 100 == 0) {
+			long mask = p.getOnsetMask(res);
+			if(!byRhythm.containsKey(mask))
+				byRhythm.put(mask, new Entry(p));
+		}
+	}
+	
+	/**
+	 * Checks whether a phrase with the given ID was added
+	 * 
+	 * @param id the ID to look for
+	 * @return true if a phrase with the ID was added
+	 */
+	boolean containsId(int id) {
+		return ids.contains(id);
+	}
+	
+	/**
+	 * Gets the highest positive ID added so far in the family of the given ID. IDs are in the same family if they have the same hundreds.
+	 * 
+	 * @param id an ID of the family
+	 * @return the last positive ID added in the family, or id if there is none
+	 */
+	int getLastInFamily(int id) {
+		Integer re = lastInFamily.get(id / 100);
+		return re == null ? id: re;
+	}
+	
+	/**
+	 * Finds the first base phrase that has the given onset mask
+	 * 
+	 * @param onsetMask the onset mask to look for
+	 * @return the entry of the phrase, or null if no base phrase has the onset mask
+	 */
+	Entry getFirstWithRhythm(long onsetMask) {
+		return byRhythm.get(onsetMask);
+	}
+	
+	/**
+	 * A base phrase together with a copy of the notes of its melody without rests and their fingerprints
+	 */
+	static final class Entry {
+		
+		final Phrase phrase;
+		final ArrayList<Note> notes;
+		final long contour;
+		final long exact;
+		
+		Entry(Phrase phrase) {
+			this.phrase = phrase;
+			this.notes = phrase.getNotes();
+			for(int i = notes.size() - 1; i >= 0; i--) {
+				if(notes.get(i).getPitch() == -1)
+					notes.remove(i);
+			}
+			this.contour = Measure.getContourPrint(notes);
+			this.exact = Measure.getExactPrint(notes);
+		}
+	}
+}
@@ -4,7 +4,10 @@
 package cox5529.generator.storage;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * @author Brandon Cox
@@ -14,17 +17,28 @@ public class PhraseTree extends Phrase {
 	
 	private Phrase p1;
 	private Phrase p2;
+	private Phrase[] leaves;
 	
 	private PhraseTree(ArrayList<Note> notes, ArrayList<ArrayList<Note>> supports, int id, Phrase p1, Phrase p2) {
 		super(notes, supports, id);
 		this.p1 = p1;
 		this.p2 = p2;
+		this.leaves = flatten(p1, p2);
 	}
 	
 	private PhraseTree(ArrayList<Note> notes, int id, ArrayList<byte[]> chords, Phrase p1, Phrase p2) {
 		super(notes, id, chords);
 		this.p1 = p1;
 		this.p2 = p2;
+		this.leaves = flatten(p1, p2);
+	}
+	
+	private static Phrase[] flatten(Phrase p1, Phrase p2) {
+		Phrase[] l1 = (p1 instanceof PhraseTree ? ((PhraseTree) p1).leaves: new Phrase[] { p1 });
+		Phrase[] l2 = (p2 instanceof PhraseTree ? ((PhraseTree) p2).leaves: new Phrase[] { p2 });
+		Phrase[] re = Arrays.copyOf(l1, l1.length + l2.length);
+		System.arraycopy(l2, 0, re, l1.length, l2.length);
+		return re;
 	}
 	
 	/**
@@ -33,12 +47,7 @@ public class PhraseTree extends Phrase {
 	 * @return the number of children in this tree
 	 */
 	public int getChildCount() {
-		int count = 0;
-		if(p1 != null)
-			count += p1.getChildCount();
-		if(p2 != null)
-			count += p2.getChildCount();
-		return count;
+		return leaves.length;
 	}
 	
 	/**
@@ -75,6 +84,27 @@ public class PhraseTree extends Phrase {
 		}
 	}
 	
+	/**
+	 * Constructs a PhraseTree over a list of children. Neighbouring children are paired level by level from the bottom up, so every note is copied once per level of the tree rather than once per child as when construct is chained. Every tree built has the given id.
+	 * 
+	 * @param children the children of this phrase in order, at least two
+	 * @param id the id of this phrase
+	 * @return a newly constructed PhraseTree
+	 */
+	public static PhraseTree construct(List<Phrase> children, int id) {
+		ArrayList<Phrase> level = new ArrayList<Phrase>(children);
+		while(level.size() > 1) {
+			ArrayList<Phrase> next = new ArrayList<Phrase>((level.size() + 1) / 2);
+			for(int i = 0; i + 1 < level.size(); i += 2) {
+				next.add(construct(level.get(i), level.get(i + 1), id));
+			}
+			if(level.size() % 2 == 1)
+				next.add(level.get(level.size() - 1));
+			level = next;
+		}
+		return (PhraseTree) level.get(0);
+	}
+	
 	/**
 	 * Gets the first child of this PhraseTree
 	 * 
@@ -94,21 +124,12 @@ public class PhraseTree extends Phrase {
 	}
 	
 	/**
-	 * Gets a HashSet of the children of this phrase
+	 * Gets a HashSet of the children of this phrase. The children are iterated in the order they appear in the tree.
 	 * 
 	 * @return a HashSet of the children of this phrase
 	 */
 	public HashSet<Phrase> getChildren() {
-		HashSet<Phrase> re = new HashSet<Phrase>();
-		if(p1 instanceof PhraseTree) {
-			re.addAll(((PhraseTree) p1).getChildren());
-		} else
-			re.add(p1);
-		if(p2 instanceof PhraseTree) {
-			re.addAll(((PhraseTree) p2).getChildren());
-		} else
-			re.add(p2);
-		return re;
+		return new LinkedHashSet<Phrase>(Arrays.asList(leaves));
 	}
 	
 	/**
@@ -117,7 +138,13 @@ public class PhraseTree extends Phrase {
 	 * @return the ID of this phrase and its children as a String
 	 */
 	public String getStringId() {
-		return p1.getStringId() + " + " + p2.getStringId();
+		StringBuilder re = new StringBuilder();
+		for(int i = 0; i < leaves.length; i++) {
+			if(i > 0)
+				re.append(" + ");
+			re.append(leaves[i].getId());
+		}
+		return re.toString();
 	}
 	
 	/**
@@ -160,16 +187,14 @@ public class PhraseTree extends Phrase {
 	}
 	
 	/**
-	 * Gets the ids of all children in order in this tree
+	 * Gets the ids of all children in order in this tree. The children are kept in a flat array when the tree is constructed, but their ids are read on every call because merging models changes the ids of existing phrases.
 	 * 
 	 * @return the ids of all children in order in this tree
 	 */
 	public int[] getChildIds() {
-		String strId = getStringId();
-		String[] cIds = strId.split(" \\+ ");
-		int[] childs = new int[cIds.length];
-		for(int i = 0; i < cIds.length; i++) {
-			childs[i] = Integer.parseInt(cIds[i]);
+		int[] childs = new int[leaves.length];
+		for(int i = 0; i < leaves.length; i++) {
+			childs[i] = leaves[i].getId();
 		}
 		return childs;
 	}
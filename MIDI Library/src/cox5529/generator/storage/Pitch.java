@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.SplittableRandom;
 
 /**
  * @author Brandon Cox
@@ -30,6 +31,28 @@ public class Pitch implements Comparable<Pitch> {
 		this.precede = precede;
 	}
 	
+	/**
+	 * Constructs a pitch object from already counted following pitches
+	 * 
+	 * @param precede the notes that precede the note that will be generated
+	 * @param follow the pitches that follow this set mapped to the number of times they were found
+	 */
+	public Pitch(byte[] precede, HashMap<Byte, Integer> follow) {
+		this.follow = follow;
+		this.precede = precede;
+	}
+	
+	/**
+	 * Constructs a copy of a pitch object that shares no data with the original
+	 * 
+	 * @param p the pitch object to copy
+	 */
+	public Pitch(Pitch p) {
+		this.follow = new HashMap<Byte, Integer>();
+		addPitches(p);
+		this.precede = p.getPrecede();
+	}
+	
 	/**
 	 * Gets the size of the follow HashMap
 	 * 
@@ -75,6 +98,69 @@ public class Pitch implements Comparable<Pitch> {
 		}
 	}
 	
+	/**
+	 * Adds all of the following pitches counted by another pitch object with the same precede array to this one
+	 * 
+	 * @param p the pitch object to add
+	 */
+	public void addPitches(Pitch p) {
+		Iterator<Entry<Byte, Integer>> it = p.follow.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry<Byte, Integer> pair = it.next();
+			Integer count = follow.get(pair.getKey());
+			follow.put(pair.getKey(), (count == null ? 0: count) + pair.getValue());
+		}
+	}
+	
+	/**
+	 * Constructs a copy of this pitch object with the preceding and following pitches moved by the given interval
+	 * 
+	 * @param interval the number of half steps to move every pitch by
+	 * @return the transposed pitch object
+	 */
+	public Pitch transpose(int interval) {
+		byte[] pre = new byte[precede.length];
+		for(int i = 0; i < precede.length; i++) {
+			pre[i] = (byte) (precede[i] + interval);
+		}
+		HashMap<Byte, Integer> fol = new HashMap<Byte, Integer>();
+		Iterator<Entry<Byte, Integer>> it = follow.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry<Byte, Integer> pair = it.next();
+			fol.put((byte) (pair.getKey() + interval), pair.getValue());
+		}
+		return new Pitch(pre, fol);
+	}
+	
+	/**
+	 * Gets the number of times this set was followed by any pitch
+	 * 
+	 * @return the sum of the counts of the following pitches
+	 */
+	public int getTotal() {
+		int re = 0;
+		Iterator<Integer> it = follow.values().iterator();
+		while(it.hasNext()) {
+			re += it.next();
+		}
+		return re;
+	}
+	
+	/**
+	 * Gets the pitches that follow this set and the number of times each was found
+	 * 
+	 * @return a copy of the follow HashMap
+	 */
+	public HashMap<Byte, Integer> getFollow() {
+		HashMap<Byte, Integer> re = new HashMap<Byte, Integer>();
+		Iterator<Entry<Byte, Integer>> it = follow.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry<Byte, Integer> pair = it.next();
+			re.put(pair.getKey(), pair.getValue());
+		}
+		return re;
+	}
+	
 	/**
 	 * Returns the precede array for this object
 	 * 
@@ -92,9 +178,10 @@ public class Pitch implements Comparable<Pitch> {
 	 * Gets the pitch that will follow this note.
 	 * 
 	 * @param ignore ArrayList of pitches to ignore
+	 * @param random the random number generator used to pick the pitch
 	 * @return the pitch that will follow this note.
 	 */
-	public byte getFollowPitch(ArrayList<Byte> ignore) {
+	public byte getFollowPitch(ArrayList<Byte> ignore, SplittableRandom random) {
 		if(ignore == null)
 			ignore = new ArrayList<Byte>();
 		Iterator<Entry<Byte, Integer>> it = follow.entrySet().iterator();
@@ -105,7 +192,7 @@ public class Pitch implements Comparable<Pitch> {
 				total += pair.getValue();
 		}
 		it = follow.entrySet().iterator();
-		double rand = Math.random();
+		double rand = random.nextDouble();
 		int counted = 0;
 		while(it.hasNext()) {
 			Map.Entry<Byte, Integer> pair = (Map.Entry<Byte, Integer>) it.next();
@@ -0,0 +1,133 @@
+package cox5529.generator.storage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Count-min sketch of pitch counts. Every pitch that follows a context is counted in one cell of every row, and the estimate of a count is the smallest of its cells. Estimates are never lower than the true count, and the sketch uses the same memory no matter how many contexts are counted.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class PitchSketch {
+	
+	private static final int ROWS = 4;
+	
+	private final int[][] cells;
+	private final int mask;
+	
+	/**
+	 * Constructs an empty sketch
+	 * 
+	 * @param width the number of cells in every row, rounded up to a power of two
+	 */
+	public PitchSketch(int width) {
+		int w = 1;
+		while(w < width) {
+			w *= 2;
+		}
+		cells = new int[ROWS][w];
+		mask = w - 1;
+	}
+	
+	/**
+	 * Gets the number of cells in every row
+	 * 
+	 * @return the width of this sketch
+	 */
+	public int getWidth() {
+		return mask + 1;
+	}
+	
+	/**
+	 * Counts a pitch that followed a context
+	 * 
+	 * @param precede the preceding pitches
+	 * @param follow the following pitch
+	 * @param count the number of times it followed
+	 */
+	public void add(byte[] precede, byte follow, int count) {
+		long h = hash(precede, follow);
+		for(int r = 0; r < ROWS; r++) {
+			cells[r][cell(h, r)] += count;
+		}
+	}
+	
+	/**
+	 * Estimates how often a pitch followed a context
+	 * 
+	 * @param precede the preceding pitches
+	 * @param follow the following pitch
+	 * @return an estimate that is never lower than the true count
+	 */
+	public int estimate(byte[] precede, byte follow) {
+		long h = hash(precede, follow);
+		int re = Integer.MAX_VALUE;
+		for(int r = 0; r < ROWS; r++) {
+			re = Math.min(re, cells[r][cell(h, r)]);
+		}
+		return re;
+	}
+	
+	/**
+	 * Adds every count of another sketch of the same width to this one
+	 * 
+	 * @param s the sketch to add
+	 */
+	public void addAll(PitchSketch s) {
+		if(s.mask != mask)
+			throw new IllegalArgumentException("Cannot merge sketches with widths " + getWidth() + " and " + s.getWidth() + ".");
+		for(int r = 0; r < ROWS; r++) {
+			for(int c = 0; c <= mask; c++) {
+				cells[r][c] += s.cells[r][c];
+			}
+		}
+	}
+	
+	/**
+	 * Writes this sketch in a form that can be read by read
+	 * 
+	 * @param out the stream to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(getWidth());
+		for(int r = 0; r < ROWS; r++) {
+			for(int c = 0; c <= mask; c++) {
+				out.writeInt(cells[r][c]);
+			}
+		}
+	}
+	
+	/**
+	 * Reads a sketch written by write
+	 * 
+	 * @param in the buffer to read from
+	 * @return the sketch
+	 */
+	public static PitchSketch read(ByteBuffer in) {
+		PitchSketch re = new PitchSketch(in.getInt());
+		for(int r = 0; r < ROWS; r++) {
+			for(int c = 0; c <= re.mask; c++) {
+				re.cells[r][c] = in.getInt();
+			}
+		}
+		return re;
+	}
+	
+	private int cell(long h, int row) {
+		long x = h + row * 0x9E3779B97F4A7C15L;
+		x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+		x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return (int) (x ^ (x >>> 33)) & mask;
+	}
+	
+	private static long hash(byte[] precede, byte follow) {
+		long h = follow;
+		for(int i = 0; i < precede.length; i++) {
+			h = h * 31 + precede[i];
+		}
+		return h;
+	}
+}
@@ -0,0 +1,232 @@
+package cox5529.generator.storage;
+
+import java.util.Arrays;
+
+/**
+ * Table of pitch contexts and the pitches that followed them. The preceding pitches of every context are stored next to each other in one byte array and found through an open addressing index, and the count of every pitch that followed a context is kept in a LongIntMap under a pair of the context and the pitch, so no objects are created per context.
+ * 
+ * A pair is the index of its context shifted left by 8 bits with the following pitch in the low 8 bits. Indices of contexts are assigned in the order the contexts were first added and change when contexts are dropped by retain.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class PitchTable {
+	
+	private final int depth;
+	private byte[] precede;
+	private int[] total;
+	private int[] index;
+	private LongIntMap counts;
+	private int size;
+	
+	/**
+	 * Constructs an empty table
+	 * 
+	 * @param depth the number of preceding pitches in every context
+	 */
+	public PitchTable(int depth) {
+		this.depth = depth;
+		precede = new byte[16 * depth];
+		total = new int[16];
+		index = new int[32];
+		counts = new LongIntMap();
+	}
+	
+	/**
+	 * Gets the number of preceding pitches in every context
+	 * 
+	 * @return the depth of this table
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	
+	/**
+	 * Gets the number of contexts in this table
+	 * 
+	 * @return the number of contexts
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Finds a context
+	 * 
+	 * @param key the preceding pitches of the context
+	 * @return the index of the context, or -1 if it is not in this table
+	 */
+	public int find(byte[] key) {
+		return index[slot(key, 0)] - 1;
+	}
+	
+	/**
+	 * Counts a pitch that followed a context. The context is added if it is not in this table yet.
+	 * 
+	 * @param key the preceding pitches of the context
+	 * @param follow the pitch that followed
+	 * @param count the number of times it followed
+	 * @return the index of the context
+	 */
+	public int add(byte[] key, byte follow, int count) {
+		int slot = slot(key, 0);
+		int context = index[slot] - 1;
+		if(context == -1) {
+			context = size;
+			if(size == total.length) {
+				total = Arrays.copyOf(total, size * 2);
+				precede = Arrays.copyOf(precede, size * 2 * depth);
+			}
+			System.arraycopy(key, 0, precede, context * depth, depth);
+			size++;
+			index[slot] = size;
+			if(size * 2 > index.length)
+				rehash(index.length * 2);
+		}
+		counts.add(pair(context, follow), count);
+		total[context] += count;
+		return context;
+	}
+	
+	/**
+	 * Gets the preceding pitches of a context
+	 * 
+	 * @param context the index of the context
+	 * @return a copy of the preceding pitches
+	 */
+	public byte[] getPrecede(int context) {
+		return Arrays.copyOfRange(precede, context * depth, context * depth + depth);
+	}
+	
+	/**
+	 * Gets the number of times a context was followed by any pitch
+	 * 
+	 * @param context the index of the context
+	 * @return the sum of the counts of the pitches that followed the context
+	 */
+	public int getTotal(int context) {
+		return total[context];
+	}
+	
+	/**
+	 * Gets every counted pair of a context and a following pitch, sorted by context and then by following pitch
+	 * 
+	 * @return the pairs of this table
+	 */
+	public long[] getPairs() {
+		long[] re = counts.getKeys();
+		Arrays.sort(re);
+		return re;
+	}
+	
+	/**
+	 * Gets the count of a pair
+	 * 
+	 * @param pair the pair as returned by getPairs
+	 * @return the number of times the pitch of the pair followed its context
+	 */
+	public int getCount(long pair) {
+		return counts.get(pair);
+	}
+	
+	/**
+	 * Gets the context of a pair
+	 * 
+	 * @param pair the pair
+	 * @return the index of the context
+	 */
+	public static int getContext(long pair) {
+		return (int) (pair >>> 8);
+	}
+	
+	/**
+	 * Gets the following pitch of a pair
+	 * 
+	 * @param pair the pair
+	 * @return the pitch that followed the context
+	 */
+	public static byte getFollow(long pair) {
+		return (byte) pair;
+	}
+	
+	/**
+	 * Drops every context that is not marked. The contexts that are kept keep their order but are given new indices.
+	 * 
+	 * @param keep true for every context to keep, by index
+	 */
+	public void retain(boolean[] keep) {
+		int[] moved = new int[size];
+		int kept = 0;
+		for(int i = 0; i < size; i++) {
+			if(keep[i]) {
+				System.arraycopy(precede, i * depth, precede, kept * depth, depth);
+				total[kept] = total[i];
+				moved[i] = kept;
+				kept++;
+			} else
+				moved[i] = -1;
+		}
+		Arrays.fill(total, kept, size, 0);
+		long[] pairs = counts.getKeys();
+		LongIntMap re = new LongIntMap(pairs.length);
+		for(int i = 0; i < pairs.length; i++) {
+			int context = moved[getContext(pairs[i])];
+			if(context != -1)
+				re.add(pair(context, getFollow(pairs[i])), counts.get(pairs[i]));
+		}
+		counts = re;
+		size = kept;
+		rehash(index.length);
+	}
+	
+	/**
+	 * Moves every preceding and following pitch by the given interval
+	 * 
+	 * @param interval the number of half steps to move every pitch by
+	 */
+	public void transpose(int interval) {
+		for(int i = 0; i < size * depth; i++) {
+			precede[i] = (byte) (precede[i] + interval);
+		}
+		long[] pairs = counts.getKeys();
+		LongIntMap re = new LongIntMap(pairs.length);
+		for(int i = 0; i < pairs.length; i++) {
+			re.add(pair(getContext(pairs[i]), (byte) (getFollow(pairs[i]) + interval)), counts.get(pairs[i]));
+		}
+		counts = re;
+		rehash(index.length);
+	}
+	
+	private int slot(byte[] key, int offset) {
+		int h = 1;
+		for(int i = 0; i < depth; i++) {
+			h = h * 31 + key[offset + i];
+		}
+		h *= 0x9E3779B9;
+		int mask = index.length - 1;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while(index[slot] != 0 && !matches(index[slot] - 1, key, offset)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private boolean matches(int context, byte[] key, int offset) {
+		for(int i = 0; i < depth; i++) {
+			if(precede[context * depth + i] != key[offset + i])
+				return false;
+		}
+		return true;
+	}
+	
+	private void rehash(int capacity) {
+		index = new int[capacity];
+		for(int i = 0; i < size; i++) {
+			index[slot(precede, i * depth)] = i + 1;
+		}
+	}
+	
+	private static long pair(int context, byte follow) {
+		return (long) context << 8 | (follow & 0xFF);
+	}
+}
@@ -0,0 +1,269 @@
+package cox5529.generator.storage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+
+/**
+ * Variable-order pitch model stored as a trie of contexts. The path from the root to a node spells the preceding pitches of a context, most recent pitch first, and every node counts the pitches that followed its context. Contexts that share their most recent pitches share nodes, and every shorter context is available to back off to when a longer one was never seen.
+ * 
+ * The trie is stored in flat arrays. The children of a node are stored next to each other and sorted by label, and the counted pitches of a node are stored next to each other in the follow arrays.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class PitchTrie {
+	
+	private final int depth;
+	private final byte[] label;
+	private final int[] childStart;
+	private final int[] childCount;
+	private final int[] followStart;
+	private final byte[] followPitch;
+	private final int[] followCount;
+	private final int[] total;
+	
+	/**
+	 * Builds a trie from a table of pitch contexts. Counts for every shorter context are the sums of the counts of the longer contexts that end with it.
+	 * 
+	 * @param pitches the pitch contexts to store
+	 */
+	public PitchTrie(PitchTable pitches) {
+		this.depth = pitches.getDepth();
+		BuildNode root = new BuildNode((byte) 0);
+		int nodes = 1;
+		int follows = 0;
+		BuildNode[] path = new BuildNode[depth + 1];
+		int context = -1;
+		long[] pairs = pitches.getPairs();
+		for(int i = 0; i < pairs.length; i++) {
+			if(PitchTable.getContext(pairs[i]) != context) {
+				context = PitchTable.getContext(pairs[i]);
+				byte[] precede = pitches.getPrecede(context);
+				path[0] = root;
+				for(int k = 0; k < depth; k++) {
+					BuildNode child = path[k].children.get(precede[k]);
+					if(child == null) {
+						child = new BuildNode(precede[k]);
+						path[k].children.put(precede[k], child);
+						nodes++;
+					}
+					path[k + 1] = child;
+				}
+			}
+			for(int k = 0; k <= depth; k++) {
+				follows += path[k].add(PitchTable.getFollow(pairs[i]), pitches.getCount(pairs[i]));
+			}
+		}
+		label = new byte[nodes];
+		childStart = new int[nodes];
+		childCount = new int[nodes];
+		followStart = new int[nodes + 1];
+		followPitch = new byte[follows];
+		followCount = new int[follows];
+		total = new int[nodes];
+		ArrayList<BuildNode> queue = new ArrayList<BuildNode>(nodes);
+		queue.add(root);
+		int f = 0;
+		for(int n = 0; n < queue.size(); n++) {
+			BuildNode node = queue.get(n);
+			label[n] = node.label;
+			childStart[n] = queue.size();
+			childCount[n] = node.children.size();
+			queue.addAll(node.children.values());
+			followStart[n] = f;
+			Iterator<Entry<Byte, Integer>> it = node.follow.entrySet().iterator();
+			while(it.hasNext()) {
+				Entry<Byte, Integer> pair = it.next();
+				followPitch[f] = pair.getKey();
+				followCount[f] = pair.getValue();
+				total[n] += pair.getValue();
+				f++;
+			}
+		}
+		followStart[nodes] = f;
+	}
+	
+	private PitchTrie(int depth, byte[] label, int[] childStart, int[] childCount, int[] followStart, byte[] followPitch, int[] followCount) {
+		this.depth = depth;
+		this.label = label;
+		this.childStart = childStart;
+		this.childCount = childCount;
+		this.followStart = followStart;
+		this.followPitch = followPitch;
+		this.followCount = followCount;
+		this.total = new int[label.length];
+		for(int n = 0; n < label.length; n++) {
+			for(int f = followStart[n]; f < followStart[n + 1]; f++) {
+				total[n] += followCount[f];
+			}
+		}
+	}
+	
+	/**
+	 * Gets the length of the longest context in this trie
+	 * 
+	 * @return the length of the longest context
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	
+	/**
+	 * Gets the number of contexts stored in this trie, including the empty context and every shorter context
+	 * 
+	 * @return the number of nodes in this trie
+	 */
+	public int getNodeCount() {
+		return label.length;
+	}
+	
+	/**
+	 * Picks the pitch that follows the given pitches. The longest context that ends with the given pitches and was seen during training is used, so a pitch is always found as long as anything was trained.
+	 * 
+	 * @param history the pitches generated so far, oldest first
+	 * @param length the number of pitches in history to use
+	 * @param random the random number generator used to pick the pitch
+	 * @return the pitch that follows the given pitches, or -1 if this trie is empty
+	 */
+	public byte getFollowPitch(byte[] history, int length, SplittableRandom random) {
+		int node = 0;
+		for(int k = 0; k < depth && k < length; k++) {
+			int child = getChild(node, history[length - 1 - k]);
+			if(child == -1)
+				break;
+			node = child;
+		}
+		if(total[node] == 0)
+			return -1;
+		int rand = random.nextInt(total[node]);
+		int counted = 0;
+		for(int f = followStart[node]; f < followStart[node + 1]; f++) {
+			counted += followCount[f];
+			if(rand < counted)
+				return followPitch[f];
+		}
+		return -1;
+	}
+	
+	private int getChild(int node, byte pitch) {
+		int lo = childStart[node];
+		int hi = lo + childCount[node] - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(label[mid] < pitch)
+				lo = mid + 1;
+			else if(label[mid] > pitch)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Writes this trie in its flat array form
+	 * 
+	 * @param out the stream to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(depth);
+		out.writeInt(label.length);
+		out.write(label);
+		for(int n = 0; n < label.length; n++) {
+			out.writeInt(childStart[n]);
+			out.writeInt(childCount[n]);
+			out.writeInt(followStart[n]);
+		}
+		out.writeInt(followPitch.length);
+		out.write(followPitch);
+		for(int f = 0; f < followCount.length; f++) {
+			out.writeInt(followCount[f]);
+		}
+	}
+	
+	/**
+	 * Reads a trie written by write(DataOutputStream)
+	 * 
+	 * @param in the buffer to read from
+	 * @return the trie
+	 */
+	public static PitchTrie read(ByteBuffer in) {
+		int depth = in.getInt();
+		int nodes = in.getInt();
+		byte[] label = new byte[nodes];
+		in.get(label);
+		int[] childStart = new int[nodes];
+		int[] childCount = new int[nodes];
+		int[] followStart = new int[nodes + 1];
+		for(int n = 0; n < nodes; n++) {
+			childStart[n] = in.getInt();
+			childCount[n] = in.getInt();
+			followStart[n] = in.getInt();
+		}
+		int follows = in.getInt();
+		followStart[nodes] = follows;
+		byte[] followPitch = new byte[follows];
+		in.get(followPitch);
+		int[] followCount = new int[follows];
+		for(int f = 0; f < follows; f++) {
+			followCount[f] = in.getInt();
+		}
+		return new PitchTrie(depth, label, childStart, childCount, followStart, followPitch, followCount);
+	}
+	
+	/**
+	 * Gets the String representation of the longest contexts in this trie, in the same form as Pitch.toString()
+	 * 
+	 * @return the String representation of this trie
+	 */
+	public String toString() {
+		StringBuilder re = new StringBuilder();
+		append(re, 0, new byte[depth], 0);
+		return re.toString();
+	}
+	
+	private void append(StringBuilder re, int node, byte[] path, int length) {
+		if(length == depth || childCount[node] == 0) {
+			if(length == 0)
+				return;
+			re.append("\nPrecede: ");
+			for(int i = 0; i < length; i++) {
+				re.append(path[i]).append(' ');
+			}
+			re.append("\nSize: ").append(followStart[node + 1] - followStart[node]).append("\nContents: ");
+			for(int f = followStart[node]; f < followStart[node + 1]; f++) {
+				re.append(followPitch[f]).append('x').append(followCount[f]).append(' ');
+			}
+			re.append('\n');
+			return;
+		}
+		for(int c = childStart[node]; c < childStart[node] + childCount[node]; c++) {
+			path[length] = label[c];
+			append(re, c, path, length + 1);
+		}
+	}
+	
+	private static class BuildNode {
+		
+		private final byte label;
+		private final TreeMap<Byte, BuildNode> children = new TreeMap<Byte, BuildNode>();
+		private final TreeMap<Byte, Integer> follow = new TreeMap<Byte, Integer>();
+		
+		private BuildNode(byte label) {
+			this.label = label;
+		}
+		
+		private int add(byte pitch, int count) {
+			Integer old = follow.get(pitch);
+			follow.put(pitch, (old == null ? 0: old) + count);
+			return (old == null ? 1: 0);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package cox5529.generator.storage;
+
+import java.util.List;
+
+/**
+ * Onset masks used to compare rhythms. A bar of four beats is split into 64 slots, and the mask of a measure has the bit of every slot in which a note starts. Rests do not set bits. Two measures have the same rhythm if their masks are equal, and the number of bits in which their masks differ measures how far apart their rhythms are.
+ * 
+ * Masks are only compared between measures in 4/4, since phrases are only learned from measures in 4/4.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class Rhythm {
+	
+	/**
+	 * The number of slots in a bar
+	 */
+	public static final int SLOTS = 64;
+	
+	private Rhythm() {
+	}
+	
+	/**
+	 * Gets the onset mask of a list of notes. Notes that start after the end of the bar are counted in the last slot.
+	 * 
+	 * @param notes the notes of one measure, with start times relative to the start of the measure
+	 * @param res the resolution of the measure
+	 * @return the onset mask of the notes
+	 */
+	public static long getOnsetMask(List<Note> notes, int res) {
+		long re = 0;
+		for(int i = 0; i < notes.size(); i++) {
+			Note n = notes.get(i);
+			if(n.getPitch() != -1)
+				re |= 1L << Math.min(SLOTS - 1, n.getStart() * SLOTS / (4 * res));
+		}
+		return re;
+	}
+	
+	/**
+	 * Gets the distance between two rhythms
+	 * 
+	 * @param a the onset mask of the first rhythm
+	 * @param b the onset mask of the second rhythm
+	 * @return the number of slots in which a note starts in only one of the rhythms
+	 */
+	public static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+}
@@ -1,10 +1,5 @@
 package cox5529.midi;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-
 /**
  * Various helper methods.
  * 
@@ -13,6 +8,50 @@ import java.util.Set;
  */
 public class Helper {
 	
+	private static final byte[] MAJOR_BASES = { 11, 6, 1, 8, 3, 10, 5, 0, 5, 2, 9, 4, 11, 6, 1 };
+	private static final byte[] MINOR_BASES = { 6, 3, 10, 5, 0, 7, 2, 9, 4, 11, 6, 1, 8, 3, 10 };
+	private static final String[][] DEGREES = { { "i", "i", "ii", "i", "iii", "iv", "i", "v", "i", "vi", "vii", "i" }, { "i", "i", "ii", "iii", "i", "iv", "i", "v", "vi", "i", "vii", "i" } };
+	
+	private static final int PLAIN = 0;
+	private static final int DYAD = 1;
+	private static final int MAJOR = 2;
+	private static final int AUGMENTED = 3;
+	private static final int DIMINISHED = 4;
+	private static final int MINOR_SEVENTH = 5;
+	private static final int MINOR_MAJOR_SEVENTH = 6;
+	private static final int DIMINISHED_SEVENTH = 7;
+	private static final int HALF_DIMINISHED_SEVENTH = 8;
+	private static final int DOMINANT_SEVENTH = 9;
+	private static final int MAJOR_SEVENTH = 10;
+	private static final int AUGMENTED_MAJOR_SEVENTH = 11;
+	
+	private static final byte[] QUALITIES = new byte[4096];
+	private static final String[][][] NUMERALS = new String[2][12][12];
+	
+	static {
+		for(int mask = 0; mask < QUALITIES.length; mask++) {
+			QUALITIES[mask] = (byte) getQuality(mask);
+		}
+		for(int mode = 0; mode < 2; mode++) {
+			for(int degree = 0; degree < 12; degree++) {
+				String num = DEGREES[mode][degree];
+				String[] names = NUMERALS[mode][degree];
+				names[PLAIN] = num;
+				names[DYAD] = "D";
+				names[MAJOR] = num.toUpperCase(); // major 0-4-7
+				names[AUGMENTED] = num + "+"; // augmented 0-4-8
+				names[DIMINISHED] = num + "o"; // diminished 0-3-6
+				names[MINOR_SEVENTH] = num + "7"; // minor seventh 0-3-7-10
+				names[MINOR_MAJOR_SEVENTH] = num + "mM7"; // minor-major seventh 0-3-7-11
+				names[DIMINISHED_SEVENTH] = num + "d7"; // diminished seventh 0-3-6-9
+				names[HALF_DIMINISHED_SEVENTH] = num + "o7"; // half-diminished seventh 0-3-6-10
+				names[DOMINANT_SEVENTH] = (num.equals("v") ? "V7D": num); // dominant seventh 0-4-7-10
+				names[MAJOR_SEVENTH] = num.toUpperCase() + "7"; // major seventh 0-4-7-11
+				names[AUGMENTED_MAJOR_SEVENTH] = num.toUpperCase() + "+7"; // augmented major seventh 0-4-8-11
+			}
+		}
+	}
+	
 	/**
 	 * Convert a byte array integer (4 bytes) to its int value
 	 * 
@@ -78,84 +117,9 @@ public class Helper {
 	 * @return the index of the lowest possible pitch
 	 */
 	public static byte getBase(int sharps, boolean isMajor) {
-		byte base = 6;
-		if(sharps == 0)
-			if(isMajor)
-				base = 6;
-			else
-				base = 15;
-		else if(sharps == 1)
-			if(isMajor)
-				base = 11;
-			else
-				base = 10;
-		else if(sharps == 2)
-			if(isMajor)
-				base = 8;
-			else
-				base = 17;
-		else if(sharps == 3)
-			if(isMajor)
-				base = 15;
-			else
-				base = 12;
-		else if(sharps == 4)
-			if(isMajor)
-				base = 10;
-			else
-				base = 7;
-		else if(sharps == 5)
-			if(isMajor)
-				base = 17;
-			else
-				base = 14;
-		else if(sharps == 6)
-			if(isMajor)
-				base = 12;
-			else
-				base = 9;
-		else if(sharps == 7)
-			if(isMajor)
-				base = 7;
-			else
-				base = 16;
-		else if(sharps == -1)
-			if(isMajor)
-				base = 11;
-			else
-				base = 8;
-		else if(sharps == -2)
-			if(isMajor)
-				base = 16;
-			else
-				base = 13;
-		else if(sharps == -3)
-			if(isMajor)
-				base = 9;
-			else
-				base = 6;
-		else if(sharps == -4)
-			if(isMajor)
-				base = 14;
-			else
-				base = 11;
-		else if(sharps == -5)
-			if(isMajor)
-				base = 7;
-			else
-				base = 16;
-		else if(sharps == -6)
-			if(isMajor)
-				base = 12;
-			else
-				base = 9;
-		else if(sharps == -7)
-			if(isMajor)
-				base = 17;
-			else
-				base = 12;
-		base -= 6;
-		return base;
+		if(sharps < -7 || sharps > 7)
+			return 0;
+		return (isMajor ? MAJOR_BASES: MINOR_BASES)[sharps + 7];
 	}
 	
 	/**
@@ -164,37 +128,43 @@ public class Helper {
 	 * @param sharps the number of sharps in the key signature
 	 * @param isMajor true if the key is major
 	 * @param notes array of pitches
-	 * @return ordered array of pitches that represents a chord
+	 * @return ordered array of the distinct pitch classes of the pitches in the lowest octave of the key
 	 */
 	public static byte[] getChord(int sharps, boolean isMajor, byte[] notes) {
+		return getChord(sharps, isMajor, getPitchClassMask(notes));
+	}
+	
+	/**
+	 * Gets the chord made of a set of pitch classes.
+	 * 
+	 * @param sharps the number of sharps in the key signature
+	 * @param isMajor true if the key is major
+	 * @param mask the pitch classes of the chord as a 12 bit mask, bit 0 being C
+	 * @return ordered array of the pitch classes in the lowest octave of the key
+	 */
+	public static byte[] getChord(int sharps, boolean isMajor, int mask) {
 		int b = getBase(sharps, isMajor);
-		int low = 100;
-		for(int i = 0; i < notes.length; i++) {
-			while(notes[i] >= 12 + b) {
-				notes[i] -= 12;
-			}
-			if(notes[i] < low)
-				low = notes[i];
+		int rel = ((mask >>> b) | (mask << (12 - b))) & 0xFFF;
+		byte[] re = new byte[Integer.bitCount(rel)];
+		for(int i = 0; i < re.length; i++) {
+			re[i] = (byte) (b + Integer.numberOfTrailingZeros(rel));
+			rel &= rel - 1;
 		}
+		return re;
+	}
+	
+	/**
+	 * Gets the pitch classes of an array of pitches.
+	 * 
+	 * @param notes array of pitches
+	 * @return the pitch classes of the pitches as a 12 bit mask, bit 0 being C
+	 */
+	public static int getPitchClassMask(byte[] notes) {
+		int mask = 0;
 		for(int i = 0; i < notes.length; i++) {
-			for(int j = 0; j < notes.length; j++) {
-				if(i != j && notes[i] == notes[j]) {
-					Set<Byte> n = new HashSet<Byte>();
-					for(int k = 0; k < notes.length; k++)
-						n.add(notes[k]);
-					Iterator<Byte> it = n.iterator();
-					int index = 0;
-					byte[] no = new byte[n.size()];
-					while(it.hasNext()) {
-						no[index] = it.next();
-						index++;
-					}
-					notes = no;
-				}
-			}
+			mask |= 1 << Math.floorMod(notes[i], 12);
 		}
-		Arrays.sort(notes);
-		return notes;
+		return mask;
 	}
 	
 	/**
@@ -254,13 +224,13 @@ public class Helper {
 	 */
 	public static byte getLowestOctave(int sharps, boolean isMajor, byte pitch) {
 		byte base = getBase(sharps, isMajor);
-		while(pitch >= 12 + base)
-			pitch -= 12;
+		if(pitch >= 12 + base)
+			return (byte) (base + (pitch - base) % 12);
 		return pitch;
 	}
 	
 	/**
-	 * Gets the numeral representation of a chord
+	 * Gets the numeral representation of a chord. The quality of the chord is looked up by the mask of its pitch classes, so pitch classes that appear more than once are counted once.
 	 * 
 	 * @param chord the chord to convert to numerals
 	 * @param sharps the number of sharps in the key signature, negative if flats
@@ -268,94 +238,10 @@ public class Helper {
 	 * @return the numeral representation of the given chord
 	 */
 	public static String getNumeral(byte[] chord, int sharps, boolean isMajor) {
-		byte base = Helper.getBase(sharps, isMajor);
-		byte[] root = new byte[chord.length];
-		for(int i = 0; i < root.length; i++) {
-			root[i] = (byte) (chord[i] % 12);
-		}
-		Arrays.sort(root);
-		byte min = root[0];
-		for(int i = 0; i < root.length; i++) {
-			root[i] = (byte) (root[i] - min);
-		}
-		String num = "";
-		int b = chord[0] - base;
-		if(isMajor) {
-			if(b == 0)
-				num = "i";
-			else if(b == 2)
-				num = "ii";
-			else if(b == 4)
-				num = "iii";
-			else if(b == 5)
-				num = "iv";
-			else if(b == 7)
-				num = "v";
-			else if(b == 9)
-				num = "vi";
-			else if(b == 10)
-				num = "vii";
-			else
-				num = "i";
-		} else {
-			if(b == 0)
-				num = "i";
-			else if(b == 2)
-				num = "ii";
-			else if(b == 3)
-				num = "iii";
-			else if(b == 5)
-				num = "iv";
-			else if(b == 7)
-				num = "v";
-			else if(b == 8)
-				num = "vi";
-			else if(b == 10)
-				num = "vii";
-			else
-				num = "i";
-		}
-		if(chord.length == 2) {
-			return "D";
-		} else if(chord.length == 3) {
-			if(root[1] == 4) {
-				if(root[2] == 7)
-					return num.toUpperCase(); // major 0-4-7
-				else
-					return num + "+"; // augmented 0-4-8
-			} else {
-				if(root[2] == 7)
-					return num; // minor 0-3-7
-				else
-					return num + "o"; // diminished 0-3-6
-			}
-		} else {
-			
-			if(root[1] == 3) {
-				if(root[2] == 7) {
-					if(root[3] == 10)
-						return num + "7"; // minor seventh 0-3-7-10
-					else if(root[3] == 11)
-						return num + "mM7"; // minor-major seventh 0-3-7-11
-				} else if(root[2] == 6) {
-					if(root[3] == 9)
-						return num + "d7"; // diminished seventh 0-3-6-9
-					else if(root[3] == 10)
-						return num + "o7"; // half-diminished seventh 0-3-6-10
-				}
-			} else if(root[1] == 4) {
-				if(root[2] == 7) {
-					if(root[3] == 10 && num.equals("v"))
-						return "V7D"; // dominant seventh 0-4-7-10
-					else if(root[3] == 11)
-						return num.toUpperCase() + "7"; // major seventh 0-4-7-11
-				} else if(root[2] == 8) {
-					if(root[3] == 11)
-						return num.toUpperCase() + "+7"; // augmented major seventh 0-4-8-11
-				}
-			}
-			return num;
-		}
+		int degree = chord[0] - getBase(sharps, isMajor);
+		if(degree < 0 || degree >= 12)
+			degree = 0;
+		return NUMERALS[isMajor ? 0: 1][degree][QUALITIES[getPitchClassMask(chord)]];
 	}
 	
 	/**
@@ -369,46 +255,18 @@ public class Helper {
 	 */
 	public static byte[] getChordFromNumeral(String num, int length, int sharps, boolean isMajor) {
 		byte base = Helper.getBase(sharps, isMajor);
-		byte[] chord = new byte[3];
-		if(isMajor) {
-			if(num.toLowerCase().equals("v")) {
-				chord[0] = (byte) (base + 7);
-			} else {
-				chord[0] = base;
-			}
-			chord[1] = (byte) (chord[0] + 4);
-			chord[2] = (byte) (chord[0] + 7);
-		} else {
-			if(num.toLowerCase().equals("v")) {
-				chord[0] = (byte) (base + 8);
-			} else {
-				chord[0] = base;
-			}
-			chord[1] = (byte) (chord[0] + 3);
-			chord[2] = (byte) (chord[0] + 7);
-		}
-		int[] instr = new int[3];
-		int index = 0;
+		byte root = base;
+		if(num.equalsIgnoreCase("v"))
+			root = (byte) (base + (isMajor ? 7: 8));
+		byte[] chord = new byte[] { root, (byte) (root + (isMajor ? 4: 3)), (byte) (root + 7) };
 		byte[] re = new byte[length];
-		while(length > 0) {
-			instr[index]++;
-			length--;
-			index++;
-			if(index == 3)
-				index = 0;
-		}
-		index = 0;
-		for(int i = 0; i < instr[0]; i++) {
-			re[index] = chord[0];
-			index++;
-		}
-		for(int i = 0; i < instr[1]; i++) {
-			re[index] = chord[1];
-			index++;
-		}
-		for(int i = 0; i < instr[2]; i++) {
-			re[index] = chord[2];
-			index++;
+		int index = 0;
+		for(int i = 0; i < 3; i++) {
+			int count = length / 3 + (i < length % 3 ? 1: 0);
+			for(int j = 0; j < count; j++) {
+				re[index] = chord[i];
+				index++;
+			}
 		}
 		return re;
 	}
@@ -421,8 +279,8 @@ public class Helper {
 	 * @return the increased pitch
 	 */
 	public static byte increaseToAverageOctave(byte pitch, byte octave) {
-		while(pitch < octave)
-			pitch += 12;
+		if(pitch < octave)
+			return (byte) (pitch + 12 * ((octave - pitch + 11) / 12));
 		return pitch;
 	}
 	
@@ -585,4 +443,47 @@ public class Helper {
 		return (byte) (pitch - dif);
 	}
 	
+	private static int getQuality(int mask) { // intervals above the lowest pitch class of the mask
+		int count = Integer.bitCount(mask);
+		int[] root = new int[4];
+		int low = Integer.numberOfTrailingZeros(mask);
+		for(int i = 0; i < root.length && mask != 0; i++) {
+			root[i] = Integer.numberOfTrailingZeros(mask) - low;
+			mask &= mask - 1;
+		}
+		if(count == 2)
+			return DYAD;
+		else if(count == 3) {
+			if(root[1] == 4)
+				return (root[2] == 7 ? MAJOR: AUGMENTED);
+			else
+				return (root[2] == 7 ? PLAIN: DIMINISHED);
+		} else if(count > 3) {
+			if(root[1] == 3) {
+				if(root[2] == 7) {
+					if(root[3] == 10)
+						return MINOR_SEVENTH;
+					else if(root[3] == 11)
+						return MINOR_MAJOR_SEVENTH;
+				} else if(root[2] == 6) {
+					if(root[3] == 9)
+						return DIMINISHED_SEVENTH;
+					else if(root[3] == 10)
+						return HALF_DIMINISHED_SEVENTH;
+				}
+			} else if(root[1] == 4) {
+				if(root[2] == 7) {
+					if(root[3] == 10)
+						return DOMINANT_SEVENTH;
+					else if(root[3] == 11)
+						return MAJOR_SEVENTH;
+				} else if(root[2] == 8) {
+					if(root[3] == 11)
+						return AUGMENTED_MAJOR_SEVENTH;
+				}
+			}
+		}
+		return PLAIN;
+	}
+	
 }
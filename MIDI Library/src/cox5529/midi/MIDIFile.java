@@ -1,5 +1,6 @@
 package cox5529.midi;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -9,12 +10,16 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.SplittableRandom;
 
 import cox5529.generator.storage.Measure;
 import cox5529.midi.event.MIDIEvent;
 import cox5529.midi.event.Tempo;
 import cox5529.midi.event.TimeSignature;
+import cox5529.midi.track.MeasureSegmenter;
 import cox5529.midi.track.MusicTrack;
+import cox5529.midi.track.NoteListener;
+import cox5529.midi.track.SegmentedTrack;
 
 /**
  * Class used to store a MIDI file or song.
@@ -93,151 +98,62 @@ public class MIDIFile {
 	 * @return a random segment of this MIDIFile
 	 */
 	public MIDIFile getRandomSegment(int duration) {
-		int tempo = 120;
+		return getRandomSegment(duration, new SplittableRandom());
+	}
+	
+	/**
+	 * Gets a random segment of this MIDIFile.
+	 * 
+	 * @param duration the duration of the segment
+	 * @param random the random number generator used to pick the segment
+	 * @return a random segment of this MIDIFile
+	 */
+	public MIDIFile getRandomSegment(int duration, SplittableRandom random) {
+		int[] tempo = new int[] { 120 };
 		ArrayList<Measure> measures = new ArrayList<Measure>();
 		MIDIFile output = new MIDIFile();
 		ArrayList<MusicTrack> tracks = getTracks();
 		int res = getResolution();
-		ArrayList<MIDIEvent> events = tracks.get(0).getEvents();
-		ArrayList<MIDIEvent> cur = new ArrayList<MIDIEvent>();
 		output.setResolution(res);
-		long measureStart = 0;
-		long maxDur = res * 4 - 1;
-		long curStart = -1;
 		byte[] instruments = new byte[tracks.size()];
 		long[] volTotal = new long[tracks.size()];
 		long[] noteCount = new long[tracks.size()];
-		for(int j = 0; j < events.size(); j++) {
-			MIDIEvent event = events.get(j);
-			if(event.getStatus() == (byte) 0x90 && event.getData()[1] != 0) {
-				if(event.getTimeStamp() > measureStart + res * 4) {
-					ArrayList<MIDIEvent> toAdd = new ArrayList<MIDIEvent>();
-					for(int k = 0; k < cur.size(); k++) {
-						toAdd.add(cur.get(k));
-					}
-					measures.add(new Measure(toAdd, res));
-					measureStart += maxDur + 1;
-					j--;
-					continue;
+		ArrayList<ArrayList<MIDIEvent>> trackEvents = new ArrayList<ArrayList<MIDIEvent>>();
+		for(int i = 0; i < tracks.size(); i++) {
+			trackEvents.add(tracks.get(i).getEvents());
+		}
+		MeasureSegmenter segmenter = new MeasureSegmenter(res, trackEvents);
+		SegmentedTrack melody = null;
+		for(int i = 0; i < tracks.size(); i++) {
+			int track = i;
+			SegmentedTrack split = segmenter.split(trackEvents.get(i), new NoteListener() {
+				
+				@Override public void noteOn(int index, MIDIEvent on) {
+					volTotal[track] += on.getData()[1];
+					noteCount[track]++;
 				}
-				volTotal[0] += event.getData()[1];
-				noteCount[0]++;
-				// Duration stuff
-				curStart = event.getTimeStamp();
-				event.setTimeStamp(curStart - measureStart);
-				cur.add(event);
-			} else if(curStart != -1 && (event.getStatus() == (byte) 0x90 && event.getData()[1] == 0) || event.getStatus() == (byte) 0x80) {
-				long noteDur = event.getTimeStamp() - curStart;
-				if(noteDur == 455 || noteDur == 479)
-					noteDur = 479;
-				else if(noteDur == 227 || noteDur == 239)
-					noteDur = 239;
-				else if(noteDur == 113 || noteDur == 119)
-					noteDur = 119;
-				long dur = curStart + noteDur - measureStart;
-				event.setTimeStamp(curStart + noteDur - measureStart);
-				curStart = -1;
-				cur.add(event);
-				if(dur >= maxDur || maxDur - dur < 1.0 / 32 * res) {
-					boolean tie = false;
-					if(dur > maxDur) {
-						cur.remove(cur.size() - 1);
-						cur.add(new MIDIEvent(maxDur, (byte) 0x90, new byte[] { events.get(j - 1).getData()[0], (byte) 0x00 }));
-						tie = true;
-					}
-					ArrayList<MIDIEvent> toAdd = new ArrayList<MIDIEvent>();
-					for(int k = 0; k < cur.size(); k++) {
-						toAdd.add(cur.get(k));
-					}
-					measures.add(new Measure(toAdd, res));
-					cur.clear();
-					if(tie) {
-						cur.add(new MIDIEvent(0, (byte) 0x90, events.get(j - 1).getData()));
-						cur.add(new MIDIEvent(dur - maxDur, (byte) 0x90, event.getData()));
-					}
-					measureStart += maxDur + 1;
+				
+				@Override public void noteOff(int index, byte pitch, byte velocity, long duration) {
 				}
-			} else if(event.getStatus() == (byte) 0xFF && event.getData()[0] == 0x51) {
-				byte[] data = event.getData();
-				tempo = (int) (0.00006 * new BigInteger(new byte[] { data[2], data[3], data[4] }).intValue());
-			} else if(event.getStatus() == (byte) 0xC0) {
-				instruments[0] = event.getData()[0];
-			}
-		}
-		ArrayList<MIDIEvent> toAdd1 = new ArrayList<MIDIEvent>();
-		for(int k = 0; k < cur.size(); k++) {
-			toAdd1.add(cur.get(k));
-		}
-		measures.add(new Measure(toAdd1, res));
-		
-		for(int i = 1; i < tracks.size(); i++) {
-			cur.clear();
-			measureStart = 0;
-			ArrayList<MIDIEvent> supportEvents = tracks.get(i).getEvents();
-			curStart = -1;
-			int mCount = 0;
-			for(int j = 0; j < supportEvents.size(); j++) {
-				MIDIEvent event = supportEvents.get(j);
-				int status = Byte.toUnsignedInt(event.getStatus());
-				if(status / 16 == 0x9 && event.getData()[1] != 0) {
-					if(event.getTimeStamp() > measureStart + res * 4 - 1) {
-						toAdd1.clear();
-						for(int k = 0; k < cur.size(); k++) {
-							toAdd1.add(cur.get(k));
-						}
-						measures.get(mCount).addSupport(toAdd1);
-						mCount++;
-						measureStart += maxDur + 1;
-						j--;
-						continue;
-					}
-					volTotal[i] += event.getData()[1];
-					noteCount[i]++;
-					curStart = event.getTimeStamp();
-					event.setTimeStamp(curStart - measureStart);
-					cur.add(event);
-				} else if(curStart != -1 && (status / 16 == 0x9 && event.getData()[1] == 0) || event.getStatus() == (byte) 0x80) {
-					long noteDur = event.getTimeStamp() - curStart;
-					if(noteDur == 455 || noteDur == 479)
-						noteDur = 479;
-					else if(noteDur == 227 || noteDur == 239)
-						noteDur = 239;
-					else if(noteDur == 113 || noteDur == 119)
-						noteDur = 119;
-					long dur = curStart + noteDur - measureStart;
-					event.setTimeStamp(curStart + noteDur - measureStart);
-					curStart = -1;
-					cur.add(event);
-					if(dur >= maxDur || maxDur - dur < 1.0 / 32 * res) {
-						boolean tie = false;
-						if(dur > maxDur) {
-							cur.remove(cur.size() - 1);
-							cur.add(new MIDIEvent(maxDur, (byte) (0x9 * 16 + j + 1), new byte[] { supportEvents.get(j - 1).getData()[0], (byte) 0x00 }));
-							tie = true;
-						}
-						ArrayList<MIDIEvent> toAdd = new ArrayList<MIDIEvent>();
-						for(int k = 0; k < cur.size(); k++) {
-							toAdd.add(cur.get(k));
-						}
-						measures.get(mCount).addSupport(toAdd);
-						mCount++;
-						cur.clear();
-						if(tie) {
-							cur.add(new MIDIEvent(0, (byte) (0x9 * 16 + j + 1), supportEvents.get(j - 1).getData()));
-							cur.add(new MIDIEvent(dur - maxDur, (byte) (0x9 * 16 + j + 1), event.getData()));
-						}
-						measureStart += maxDur + 1;
-					}
-				} else if(status / 16 == 0xC) {
-					instruments[i] = event.getData()[0];
+				
+				@Override public void otherEvent(int index, MIDIEvent event) {
+					byte[] data = event.getData();
+					if(track == 0 && event.getStatus() == (byte) 0xFF && data[0] == 0x51)
+						tempo[0] = (int) (0.00006 * new BigInteger(new byte[] { data[2], data[3], data[4] }).intValue());
+					else if(Byte.toUnsignedInt(event.getStatus()) / 16 == 0xC)
+						instruments[track] = data[0];
+				}
+			});
+			if(i == 0) {
+				melody = split;
+				for(int j = 0; j < split.getMeasureCount(); j++) {
+					measures.add(new Measure(split.getMeasure(j), res, segmenter.getBarLength(split.getMeasureStart(j))));
+				}
+			} else {
+				for(int j = 0; j < measures.size(); j++) {
+					measures.get(j).addSupport(j < split.getMeasureCount() ? split.getMeasure(j): new ArrayList<MIDIEvent>());
 				}
 			}
-			toAdd1.clear();
-			for(int k = 0; k < cur.size(); k++) {
-				toAdd1.add(cur.get(k));
-			}
-			if(measures.size() > mCount)
-				measures.get(mCount).addSupport(toAdd1);
 		}
 		
 		byte[] volAve = new byte[volTotal.length];
@@ -245,18 +161,26 @@ public class MIDIFile {
 			volAve[i] = (byte) (volTotal[i] / noteCount[i]);
 		}
 		
-		int start = (int) (Math.random() * (measures.size() - duration - 1));
+		int start = (int) (random.nextDouble() * (measures.size() - duration - 1));
 		MusicTrack[] outTracks = new MusicTrack[tracks.size()];
 		for(int i = 0; i < outTracks.length; i++) {
 			outTracks[i] = new MusicTrack();
 		}
-		outTracks[0].addEvent(TimeSignature.construct(0, (byte) 4, (byte) 4));
-		outTracks[0].addEvent(Tempo.construct(0, tempo));
+		byte num = segmenter.getNumerator(melody.getMeasureStart(start));
+		byte den = segmenter.getDenominator(melody.getMeasureStart(start));
+		outTracks[0].addEvent(TimeSignature.construct(0, num, den));
+		outTracks[0].addEvent(Tempo.construct(0, tempo[0]));
 		for(int i = 0; i < outTracks.length; i++) {
 			outTracks[i].changeInstrument(0, i, instruments[i]);
 		}
+		long pos = 0;
 		for(int i = 0; i < duration; i++) {
-			int pos = i * res * 4;
+			long measureStart = melody.getMeasureStart(i + start);
+			if(segmenter.getNumerator(measureStart) != num || segmenter.getDenominator(measureStart) != den) {
+				num = segmenter.getNumerator(measureStart);
+				den = segmenter.getDenominator(measureStart);
+				outTracks[0].addEvent(TimeSignature.construct(pos, num, den));
+			}
 			ArrayList<MIDIEvent> outEvents = measures.get(i + start).getEvents();
 			for(int j = 0; j < outEvents.size(); j++) {
 				MIDIEvent event = outEvents.get(j);
@@ -274,6 +198,7 @@ public class MIDIFile {
 					outTracks[j + 1].addEvent(event);
 				}
 			}
+			pos += segmenter.getBarLength(measureStart);
 		}
 		for(int i = 0; i < outTracks.length; i++) {
 			output.addTrack(outTracks[i]);
@@ -290,23 +215,36 @@ public class MIDIFile {
 	 */
 	public void write(File f, boolean debug) throws IOException {
 		FileOutputStream fos = new FileOutputStream(f);
-		fos.write(new byte[] { 0x4D, 0x54, 0x68, 0x64 }); // Literal "MThd"
-		fos.write(new byte[] { 0x00, 0x00, 0x00, 0x06 });
-		fos.write(new byte[] { 0x00, 0x01 });
-		fos.write(ByteBuffer.allocate(4).putInt(tracks.size()).array(), 2, 2);
-		fos.write(ByteBuffer.allocate(4).putInt(resolution).array(), 2, 2);
+		fos.write(toByteArray(debug));
+		fos.close();
+		if(debug)
+			System.out.println("Wrote file \"" + f.getName() + "\".");
+	}
+	
+	/**
+	 * Converts this MIDIFile to the bytes of a .mid file
+	 * 
+	 * @param debug true if status should be printed to the console.
+	 * @return the contents of the .mid file representing this MIDIFile
+	 */
+	public byte[] toByteArray(boolean debug) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(new byte[] { 0x4D, 0x54, 0x68, 0x64 }, 0, 4); // Literal "MThd"
+		out.write(new byte[] { 0x00, 0x00, 0x00, 0x06 }, 0, 4);
+		out.write(new byte[] { 0x00, 0x01 }, 0, 2);
+		out.write(ByteBuffer.allocate(4).putInt(tracks.size()).array(), 2, 2);
+		out.write(ByteBuffer.allocate(4).putInt(resolution).array(), 2, 2);
 		if(debug) {
 			System.out.println("Wrote MIDI header.");
 		}
 		for(int i = 0; i < tracks.size(); i++) {
-			fos.write(tracks.get(i).toOutputArray(debug));
+			byte[] track = tracks.get(i).toOutputArray(debug);
+			out.write(track, 0, track.length);
 			if(debug) {
 				System.out.println("Wrote track " + (1 + i) + ".");
 			}
 		}
-		fos.close();
-		if(debug)
-			System.out.println("Wrote file \"" + f.getName() + "\".");
+		return out.toByteArray();
 	}
 	
 	/**
@@ -318,6 +256,20 @@ public class MIDIFile {
 	 * @throws IOException if an I/O error occurs reading from the file
 	 */
 	public static MIDIFile read(File f, boolean debug) throws IOException {
+		return read(f, debug, ProgressMonitor.NONE);
+	}
+	
+	/**
+	 * Reads a MIDIFile, reporting every track and every 1024 events read to the monitor.
+	 * 
+	 * @param f the file to read from in the .mid format
+	 * @param debug true if status should be printed to the console.
+	 * @param monitor the monitor to report progress to and check for cancellation
+	 * @return a MIDIFile object created from the given .mid file
+	 * @throws IOException if an I/O error occurs reading from the file
+	 * @throws java.util.concurrent.CancellationException if the monitor was cancelled
+	 */
+	public static MIDIFile read(File f, boolean debug, ProgressMonitor monitor) throws IOException {
 		byte[] file = Files.readAllBytes(Paths.get(f.getAbsolutePath()));
 		if(debug)
 			System.out.println("Read file into byte array.");
@@ -329,7 +281,8 @@ public class MIDIFile {
 		ArrayList<MusicTrack> tracks = new ArrayList<MusicTrack>();
 		for(int i = 0; i < trackCount; i++) {
 			int length = Helper.byteArrayToInt(file[index + 4], file[index + 5], file[index + 6], file[index + 7]);
-			tracks.add(MusicTrack.byteArrayToTrack(Arrays.copyOfRange(file, index, index + length + 8), debug));
+			tracks.add(MusicTrack.byteArrayToTrack(Arrays.copyOfRange(file, index, index + length + 8), debug, monitor));
+			monitor.report(ProgressMonitor.TRACKS, i + 1, trackCount);
 			if(debug)
 				System.out.println("Read track.");
 			index += length + 8;
@@ -0,0 +1,19 @@
+package cox5529.midi;
+
+/**
+ * Receives progress reports from long-running reading, training and generation methods.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public interface ProgressListener {
+	
+	/**
+	 * Called when a unit of work is finished. Work that runs on several threads at once reports from all of them, so implementations must be thread-safe.
+	 * 
+	 * @param stage the kind of unit that was finished, one of the stage constants of ProgressMonitor
+	 * @param done the number of units of this stage finished so far
+	 * @param total the number of units of this stage, or -1 if it is not known
+	 */
+	void progress(String stage, long done, long total);
+}
@@ -0,0 +1,105 @@
+package cox5529.midi;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Progress and cancellation surface of a long-running task. The task reports its progress through the monitor and checks for cancellation whenever it finishes a unit of work, so a task can be stopped from another thread without killing the JVM.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public class ProgressMonitor {
+	
+	/**
+	 * Stage reported when a file has been read or analyzed
+	 */
+	public static final String FILES = "files";
+	/**
+	 * Stage reported when a track has been read
+	 */
+	public static final String TRACKS = "tracks";
+	/**
+	 * Stage reported while the events of a track are read
+	 */
+	public static final String EVENTS = "events";
+	/**
+	 * Stage reported when a measure has been analyzed or written
+	 */
+	public static final String MEASURES = "measures";
+	/**
+	 * Stage reported when a phrase has been generated
+	 */
+	public static final String PHRASES = "phrases";
+	
+	/**
+	 * Monitor that reports nowhere and can not be cancelled
+	 */
+	public static final ProgressMonitor NONE = new ProgressMonitor(null, false);
+	
+	private final ProgressListener listener;
+	private final boolean cancellable;
+	private volatile boolean cancelled = false;
+	
+	/**
+	 * Constructs a monitor without a listener that can only be used to cancel a task
+	 */
+	public ProgressMonitor() {
+		this(null, true);
+	}
+	
+	/**
+	 * Constructs a monitor
+	 * 
+	 * @param listener the listener to send progress reports to, or null
+	 */
+	public ProgressMonitor(ProgressListener listener) {
+		this(listener, true);
+	}
+	
+	private ProgressMonitor(ProgressListener listener, boolean cancellable) {
+		this.listener = listener;
+		this.cancellable = cancellable;
+	}
+	
+	/**
+	 * Asks the task to stop. The task throws a CancellationException the next time it checks this monitor.
+	 */
+	public void cancel() {
+		if(!cancellable)
+			throw new UnsupportedOperationException("This monitor can not be cancelled.");
+		cancelled = true;
+	}
+	
+	/**
+	 * Checks whether the task was asked to stop
+	 * 
+	 * @return true if cancel was called
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Throws if the task was asked to stop
+	 * 
+	 * @throws CancellationException if cancel was called
+	 */
+	public void checkCancelled() {
+		if(cancelled)
+			throw new CancellationException("The task was cancelled.");
+	}
+	
+	/**
+	 * Checks for cancellation and then sends a progress report to the listener
+	 * 
+	 * @param stage the kind of unit that was finished
+	 * @param done the number of units of this stage finished so far
+	 * @param total the number of units of this stage, or -1 if it is not known
+	 * @throws CancellationException if cancel was called
+	 */
+	public void report(String stage, long done, long total) {
+		checkCancelled();
+		if(listener != null)
+			listener.progress(stage, done, total);
+	}
+}
@@ -111,6 +111,25 @@ public class MIDIEvent implements Comparable<MIDIEvent> {
 		return data;
 	}
 	
+	/**
+	 * Gets one data byte of this MIDIEvent without copying the data
+	 * 
+	 * @param index the index of the data byte
+	 * @return the data byte at the index
+	 */
+	public byte getData(int index) {
+		return data[index];
+	}
+	
+	/**
+	 * Gets the number of data bytes of this MIDIEvent
+	 * 
+	 * @return the number of data bytes
+	 */
+	public int getDataLength() {
+		return data.length;
+	}
+	
 	/**
 	 * Sets the data bytes of this MIDIEvent
 	 * 
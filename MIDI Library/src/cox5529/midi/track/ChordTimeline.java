@@ -0,0 +1,201 @@
+package cox5529.midi.track;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import cox5529.midi.MIDIFile;
+import cox5529.midi.event.MIDIEvent;
+
+/**
+ * The harmony of a piece as a list of segments. Every segment has the time at which it starts and the set of pitch classes that sound during it as a 12 bit mask, bit 0 being C. A new segment starts whenever the set of sounding pitch classes changes, so segments with a mask of 0 are silences.
+ * 
+ * The timeline is built by a sweep over a k-way merge of the tracks, so it takes one pass over the events and does not depend on which track has the fewest notes. Notes are counted per channel and pitch, so overlapping notes and notes doubled by several tracks are handled, and note offs without a note on are ignored. Notes on channel 10 are percussion and are left out.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class ChordTimeline {
+	
+	private long[] starts;
+	private int[] masks;
+	private int count;
+	
+	/**
+	 * Builds the timeline of a list of tracks
+	 * 
+	 * @param tracks the events of every track, each in order
+	 */
+	public ChordTimeline(List<? extends List<MIDIEvent>> tracks) {
+		starts = new long[16];
+		masks = new int[16];
+		int k = tracks.size();
+		int[] pos = new int[k];
+		long[] next = new long[k];
+		int[] heap = new int[k];
+		int size = 0;
+		for(int i = 0; i < k; i++) {
+			if(!tracks.get(i).isEmpty()) {
+				next[i] = tracks.get(i).get(0).getTimeStamp();
+				heap[size] = i;
+				size++;
+				siftUp(heap, size - 1, next);
+			}
+		}
+		int[] open = new int[16 * 128];
+		int[] classes = new int[12];
+		int mask = 0;
+		int last = 0;
+		while(size > 0) {
+			long tick = next[heap[0]];
+			while(size > 0 && next[heap[0]] == tick) {
+				int track = heap[0];
+				List<MIDIEvent> events = tracks.get(track);
+				MIDIEvent event = events.get(pos[track]);
+				pos[track]++;
+				boolean on = NotePairer.isNoteOn(event);
+				int channel = event.getStatus() & 0x0F;
+				if((on || NotePairer.isNoteOff(event)) && channel != 9) {
+					int pitch = event.getData(0) & 0x7F;
+					int key = channel * 128 + pitch;
+					int pc = pitch % 12;
+					if(on) {
+						open[key]++;
+						classes[pc]++;
+						mask |= 1 << pc;
+					} else if(open[key] > 0) {
+						open[key]--;
+						classes[pc]--;
+						if(classes[pc] == 0)
+							mask &= ~(1 << pc);
+					}
+				}
+				if(pos[track] < events.size()) {
+					next[track] = events.get(pos[track]).getTimeStamp();
+				} else {
+					size--;
+					heap[0] = heap[size];
+				}
+				siftDown(heap, size, next);
+			}
+			if(mask != last) {
+				add(tick, mask);
+				last = mask;
+			}
+		}
+	}
+	
+	/**
+	 * Builds the timeline of every track of a file
+	 * 
+	 * @param file the file to build the timeline of
+	 * @return the timeline of the file
+	 */
+	public static ChordTimeline of(MIDIFile file) {
+		ArrayList<MusicTrack> tracks = file.getTracks();
+		ArrayList<ArrayList<MIDIEvent>> events = new ArrayList<ArrayList<MIDIEvent>>();
+		for(int i = 0; i < tracks.size(); i++) {
+			ArrayList<MIDIEvent> track = tracks.get(i).getEvents();
+			Collections.sort(track);
+			events.add(track);
+		}
+		return new ChordTimeline(events);
+	}
+	
+	/**
+	 * Gets the number of segments in this timeline
+	 * 
+	 * @return the number of segments
+	 */
+	public int getSegmentCount() {
+		return count;
+	}
+	
+	/**
+	 * Gets the time at which a segment starts
+	 * 
+	 * @param segment the index of the segment
+	 * @return the start of the segment in MIDI clocks
+	 */
+	public long getStart(int segment) {
+		return starts[segment];
+	}
+	
+	/**
+	 * Gets the pitch classes that sound during a segment
+	 * 
+	 * @param segment the index of the segment
+	 * @return the pitch classes of the segment as a 12 bit mask
+	 */
+	public int getMask(int segment) {
+		return masks[segment];
+	}
+	
+	/**
+	 * Gets the pitch classes that sound at a tick
+	 * 
+	 * @param tick the time in MIDI clocks
+	 * @return the pitch classes as a 12 bit mask, 0 before the first segment
+	 */
+	public int getMaskAt(long tick) {
+		int i = Arrays.binarySearch(starts, 0, count, tick);
+		if(i < 0)
+			i = -i - 2;
+		return (i < 0 ? 0: masks[i]);
+	}
+	
+	/**
+	 * Gets the starts of every segment
+	 * 
+	 * @return the start of every segment in MIDI clocks, in order
+	 */
+	public long[] getStarts() {
+		return Arrays.copyOf(starts, count);
+	}
+	
+	/**
+	 * Gets the pitch classes of every segment
+	 * 
+	 * @return the pitch classes of every segment as 12 bit masks, in the order of getStarts
+	 */
+	public int[] getMasks() {
+		return Arrays.copyOf(masks, count);
+	}
+	
+	private void add(long start, int mask) {
+		if(count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			masks = Arrays.copyOf(masks, count * 2);
+		}
+		starts[count] = start;
+		masks[count] = mask;
+		count++;
+	}
+	
+	private static void siftUp(int[] heap, int i, long[] next) {
+		int track = heap[i];
+		while(i > 0 && next[heap[(i - 1) / 2]] > next[track]) {
+			heap[i] = heap[(i - 1) / 2];
+			i = (i - 1) / 2;
+		}
+		heap[i] = track;
+	}
+	
+	private static void siftDown(int[] heap, int size, long[] next) {
+		if(size == 0)
+			return;
+		int i = 0;
+		int track = heap[0];
+		while(i * 2 + 1 < size) {
+			int child = i * 2 + 1;
+			if(child + 1 < size && next[heap[child + 1]] < next[heap[child]])
+				child++;
+			if(next[heap[child]] >= next[track])
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = track;
+	}
+}
@@ -0,0 +1,174 @@
+package cox5529.midi.track;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import cox5529.midi.event.MIDIEvent;
+
+/**
+ * Splits tracks into measures in a single pass. The length of every measure is taken from the time signature (0x58) events of the file, and 4/4 is used until the first time signature. A time signature applies from the first measure that starts at or after it.
+ * 
+ * Notes are paired with their note offs by a NotePairer and their durations are rounded to whole beat fractions at a resolution of 480. Every note that is still sounding when a measure ends is tied: it is ended at the last clock of the measure and started again at the beginning of the next, so every measure holds only complete notes. A measure also ends as soon as a note ends within a 32nd of a beat of its end, so that notes that are released slightly late do not spill over. A note that is released after such a measure has ended is taken to end with its tie, and its start in the next measure is dropped.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class MeasureSegmenter {
+	
+	private final int res;
+	private final long[] changes;
+	private final byte[] nums;
+	private final byte[] dens;
+	
+	/**
+	 * Constructs a segmenter for the tracks of one file
+	 * 
+	 * @param res the resolution of the file
+	 * @param tracks the events of every track of the file, searched for time signatures
+	 */
+	public MeasureSegmenter(int res, List<ArrayList<MIDIEvent>> tracks) {
+		this.res = res;
+		TreeMap<Long, byte[]> sigs = new TreeMap<Long, byte[]>();
+		sigs.put(0L, new byte[] { 4, 2 });
+		for(int i = 0; i < tracks.size(); i++) {
+			ArrayList<MIDIEvent> events = tracks.get(i);
+			for(int j = 0; j < events.size(); j++) {
+				MIDIEvent event = events.get(j);
+				if(event.getStatus() == (byte) 0xFF) {
+					byte[] data = event.getData();
+					if(data[0] == 0x58 && data.length >= 4 && data[2] > 0 && data[3] >= 0 && data[3] < 7)
+						sigs.put(event.getTimeStamp(), new byte[] { data[2], data[3] });
+				}
+			}
+		}
+		changes = new long[sigs.size()];
+		nums = new byte[sigs.size()];
+		dens = new byte[sigs.size()];
+		int i = 0;
+		for(Long tick : sigs.keySet()) {
+			changes[i] = tick;
+			nums[i] = sigs.get(tick)[0];
+			dens[i] = (byte) (1 << sigs.get(tick)[1]);
+			i++;
+		}
+	}
+	
+	/**
+	 * Gets the length of a measure that starts at the given time
+	 * 
+	 * @param tick the start of the measure in MIDI clocks
+	 * @return the length of the measure in MIDI clocks
+	 */
+	public long getBarLength(long tick) {
+		int i = find(tick);
+		return (long) nums[i] * 4 * res / dens[i];
+	}
+	
+	/**
+	 * Gets the numerator of the time signature of a measure that starts at the given time
+	 * 
+	 * @param tick the start of the measure in MIDI clocks
+	 * @return the numerator of the time signature
+	 */
+	public byte getNumerator(long tick) {
+		return nums[find(tick)];
+	}
+	
+	/**
+	 * Gets the denominator of the time signature of a measure that starts at the given time
+	 * 
+	 * @param tick the start of the measure in MIDI clocks
+	 * @return the denominator of the time signature
+	 */
+	public byte getDenominator(long tick) {
+		return dens[find(tick)];
+	}
+	
+	/**
+	 * Splits a track into measures. The timestamps of the note events in the list are changed to be relative to their measure, and note offs are changed to note ons with a velocity of 0. Events that are not notes are passed to the listener and left out of the measures.
+	 * 
+	 * @param events the events of the track, in order
+	 * @param listener the listener to pass the events of the track to
+	 * @return the measures of the track. The last measure holds the notes after the last full measure and may be empty.
+	 */
+	public SegmentedTrack split(ArrayList<MIDIEvent> events, NoteListener listener) {
+		SegmentedTrack re = new SegmentedTrack();
+		NotePairer open = new NotePairer();
+		long barStart = 0;
+		long barLength = getBarLength(0);
+		for(int j = 0; j < events.size(); j++) {
+			MIDIEvent event = events.get(j);
+			int channel = event.getStatus() & 0x0F;
+			if(NotePairer.isNoteOn(event)) {
+				while(event.getTimeStamp() >= barStart + barLength) {
+					close(re, open, barStart, barLength);
+					barStart += barLength;
+					barLength = getBarLength(barStart);
+				}
+				listener.noteOn(j, event);
+				open.noteOn(channel, event.getData(0), event.getData(1), event.getTimeStamp());
+				event.setTimeStamp(event.getTimeStamp() - barStart);
+				re.add(event);
+			} else if(NotePairer.isNoteOff(event)) {
+				byte pitch = event.getData(0);
+				if(!open.noteOff(channel, pitch))
+					continue;
+				long start = open.getStart();
+				byte velocity = open.getVelocity();
+				long duration = roundDuration(event.getTimeStamp() - start);
+				listener.noteOff(j, pitch, velocity, duration);
+				long end = start + duration - barStart;
+				byte onStatus = (byte) (0x90 | channel);
+				if(end < 0) {
+					re.untie(onStatus, pitch);
+					continue;
+				}
+				while(end > barLength - 1) {
+					re.add(new MIDIEvent(barLength - 1, onStatus, new byte[] { pitch, 0 }));
+					close(re, open, barStart, barLength);
+					barStart += barLength;
+					end -= barLength;
+					barLength = getBarLength(barStart);
+					re.add(new MIDIEvent(0, onStatus, new byte[] { pitch, velocity }));
+				}
+				event.setTimeStamp(end);
+				if(event.getStatus() != onStatus || event.getData(1) != 0) {
+					event.setStatus(onStatus);
+					event.setData(new byte[] { pitch, 0 });
+				}
+				re.add(event);
+				if(barLength - 1 - end < 1.0 / 32 * res) {
+					close(re, open, barStart, barLength);
+					barStart += barLength;
+					barLength = getBarLength(barStart);
+				}
+			} else
+				listener.otherEvent(j, event);
+		}
+		re.close(barStart);
+		return re;
+	}
+	
+	private static void close(SegmentedTrack re, NotePairer open, long barStart, long barLength) {
+		open.visitOpen(barLength - 1, (start, stop, pitch, velocity, channel) -> re.add(new MIDIEvent(stop, (byte) (0x90 | channel), new byte[] { pitch, 0 })));
+		re.close(barStart);
+		open.visitOpen(0, (start, stop, pitch, velocity, channel) -> re.add(new MIDIEvent(stop, (byte) (0x90 | channel), new byte[] { pitch, velocity })));
+	}
+	
+	private int find(long tick) {
+		int i = Arrays.binarySearch(changes, tick);
+		return (i >= 0 ? i: -i - 2);
+	}
+	
+	private static long roundDuration(long duration) {
+		if(duration == 455 || duration == 479)
+			return 479;
+		else if(duration == 227 || duration == 239)
+			return 239;
+		else if(duration == 113 || duration == 119)
+			return 119;
+		return duration;
+	}
+}
@@ -7,6 +7,7 @@ import java.util.Collections;
 
 import cox5529.generator.storage.Note;
 import cox5529.midi.Helper;
+import cox5529.midi.ProgressMonitor;
 import cox5529.midi.event.MIDIEvent;
 import cox5529.midi.event.MetaEvent;
 
@@ -123,28 +124,30 @@ public class MusicTrack {
 	 */
 	public byte[] toOutputArray(boolean debug) {
 		Collections.sort(events);
-		events.add(MetaEvent.construct(events.get(events.size() - 1).getTimeStamp(), (byte) 0x2F, new byte[] {}));
+		ArrayList<MIDIEvent> all = new ArrayList<MIDIEvent>(events.size() + 1);
+		all.addAll(events);
+		all.add(MetaEvent.construct((all.isEmpty() ? 0: all.get(all.size() - 1).getTimeStamp()), (byte) 0x2F, new byte[] {}));
 		ArrayList<byte[]> out = new ArrayList<byte[]>();
 		out.add(new byte[] { 0x4D, 0x54, 0x72, 0x6B });
 		int trackLength = 0;
-		for(int i = 0; i < events.size(); i++) {
+		for(int i = 0; i < all.size(); i++) {
 			boolean runningStat = false;
 			if(i != 0) {
-				runningStat = events.get(i).getStatus() != (byte) 0xFF && events.get(i - 1).getStatus() == events.get(i).getStatus();
+				runningStat = all.get(i).getStatus() != (byte) 0xFF && all.get(i - 1).getStatus() == all.get(i).getStatus();
 			}
-			trackLength += events.get(i).getSize((i == 0 ? 0: events.get(i - 1).getTimeStamp()), runningStat);
+			trackLength += all.get(i).getSize((i == 0 ? 0: all.get(i - 1).getTimeStamp()), runningStat);
 		}
 		out.add(ByteBuffer.allocate(4).putInt(trackLength).array());
 		if(debug)
 			System.out.println("Created track header.");
-		for(int i = 0; i < events.size(); i++) {
+		for(int i = 0; i < all.size(); i++) {
 			boolean runningStat = false;
 			if(i != 0) {
-				runningStat = events.get(i).getStatus() != (byte) 0xFF && events.get(i - 1).getStatus() == events.get(i).getStatus();
+				runningStat = all.get(i).getStatus() != (byte) 0xFF && all.get(i - 1).getStatus() == all.get(i).getStatus();
 			}
-			out.add(events.get(i).toByteArray((i == 0 ? 0: events.get(i - 1).getTimeStamp()), runningStat));
+			out.add(all.get(i).toByteArray((i == 0 ? 0: all.get(i - 1).getTimeStamp()), runningStat));
 			if(debug)
-				System.out.println("Created MIDI event with data: " + events.get(i).toString((i == 0 ? 0: events.get(i - 1).getTimeStamp())) + ".");
+				System.out.println("Created MIDI event with data: " + all.get(i).toString((i == 0 ? 0: all.get(i - 1).getTimeStamp())) + ".");
 		}
 		int len = 0;
 		for(int i = 0; i < out.size(); i++) {
@@ -170,8 +173,22 @@ public class MusicTrack {
 	 * @return a new MusicTrack
 	 */
 	public static MusicTrack byteArrayToTrack(byte[] in, boolean debug) {
+		return byteArrayToTrack(in, debug, ProgressMonitor.NONE);
+	}
+	
+	/**
+	 * Converts an array of bytes to a MIDI track. The number of events read is reported to the monitor every 1024 events.
+	 * 
+	 * @param in the array of bytes to use
+	 * @param debug true if status should be printed to the console.
+	 * @param monitor the monitor to report progress to and check for cancellation
+	 * @return a new MusicTrack
+	 * @throws java.util.concurrent.CancellationException if the monitor was cancelled
+	 */
+	public static MusicTrack byteArrayToTrack(byte[] in, boolean debug, ProgressMonitor monitor) {
 		int length = Helper.byteArrayToInt(in[4], in[5], in[6], in[7]);
 		ArrayList<MIDIEvent> events = new ArrayList<MIDIEvent>();
+		int read = 0;
 		for(int i = 8; i < length + 8; i += 0) {
 			int timeLength = 1;
 			for(int j = i; j < i + 4; j++) {
@@ -195,6 +212,9 @@ public class MusicTrack {
 			if(in[i + timeLength] != event.getStatus())
 				i--;
 			i += size;
+			read++;
+			if(read % 1024 == 0)
+				monitor.report(ProgressMonitor.EVENTS, read, -1);
 		}
 		return new MusicTrack(events);
 	}
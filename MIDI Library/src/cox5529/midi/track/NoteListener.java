@@ -0,0 +1,38 @@
+package cox5529.midi.track;
+
+import cox5529.midi.event.MIDIEvent;
+
+/**
+ * Receives the events of a track while a MeasureSegmenter splits it into measures, so that statistics can be collected in the same pass.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public interface NoteListener {
+	
+	/**
+	 * Called for every note on event, before its timestamp is made relative to its measure
+	 * 
+	 * @param index the index of the event in the track
+	 * @param on the note on event
+	 */
+	void noteOn(int index, MIDIEvent on);
+	
+	/**
+	 * Called for every note off event that ends an open note
+	 * 
+	 * @param index the index of the note off event in the track
+	 * @param pitch the pitch of the note
+	 * @param velocity the velocity of the note on of the note
+	 * @param duration the duration of the note in MIDI clocks
+	 */
+	void noteOff(int index, byte pitch, byte velocity, long duration);
+	
+	/**
+	 * Called for every event that is neither a note on nor a note off, such as meta events and program changes
+	 * 
+	 * @param index the index of the event in the track
+	 * @param event the event
+	 */
+	void otherEvent(int index, MIDIEvent event);
+}
@@ -0,0 +1,177 @@
+package cox5529.midi.track;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cox5529.midi.event.MIDIEvent;
+
+/**
+ * Pairs note on events with their note offs. Every channel and pitch has its own stack of open notes, so overlapping notes are paired correctly: a note off ends the most recent open note of its channel and pitch. A note off is either a note off event (0x8n) or a note on event (0x9n) with a velocity of 0.
+ * 
+ * The stacks are kept in a table of 16 channels by 128 pitches that links into a shared pool of primitive arrays. Entries of the pool are reused once their note is closed, so pairing a track allocates nothing per event once the pool is as large as the most notes that are open at once.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class NotePairer {
+	
+	private static final int KEYS = 16 * 128;
+	
+	private final int[] top;
+	private long[] starts;
+	private byte[] velocities;
+	private int[] below;
+	private int used;
+	private int free;
+	private int open;
+	private long lastStart;
+	private byte lastVelocity;
+	
+	/**
+	 * Constructs a pairer with no open notes
+	 */
+	public NotePairer() {
+		top = new int[KEYS];
+		starts = new long[16];
+		velocities = new byte[16];
+		below = new int[16];
+		clear();
+	}
+	
+	/**
+	 * Forgets every open note
+	 */
+	public void clear() {
+		Arrays.fill(top, -1);
+		used = 0;
+		free = -1;
+		open = 0;
+	}
+	
+	/**
+	 * Opens a note
+	 * 
+	 * @param channel the channel of the note
+	 * @param pitch the pitch of the note
+	 * @param velocity the velocity of the note
+	 * @param time the time of the note on in MIDI clocks
+	 */
+	public void noteOn(int channel, byte pitch, byte velocity, long time) {
+		int entry;
+		if(free != -1) {
+			entry = free;
+			free = below[entry];
+		} else {
+			if(used == starts.length) {
+				starts = Arrays.copyOf(starts, used * 2);
+				velocities = Arrays.copyOf(velocities, used * 2);
+				below = Arrays.copyOf(below, used * 2);
+			}
+			entry = used++;
+		}
+		int key = key(channel, pitch);
+		starts[entry] = time;
+		velocities[entry] = velocity;
+		below[entry] = top[key];
+		top[key] = entry;
+		open++;
+	}
+	
+	/**
+	 * Closes the most recent open note of a channel and pitch. The start and velocity of the closed note can then be read with getStart and getVelocity.
+	 * 
+	 * @param channel the channel of the note
+	 * @param pitch the pitch of the note
+	 * @return true if a note was open, false if the note off has no note on
+	 */
+	public boolean noteOff(int channel, byte pitch) {
+		int key = key(channel, pitch);
+		int entry = top[key];
+		if(entry == -1)
+			return false;
+		top[key] = below[entry];
+		lastStart = starts[entry];
+		lastVelocity = velocities[entry];
+		below[entry] = free;
+		free = entry;
+		open--;
+		return true;
+	}
+	
+	/**
+	 * Gets the start of the note closed by the last successful call to noteOff
+	 * 
+	 * @return the time of the note on in MIDI clocks
+	 */
+	public long getStart() {
+		return lastStart;
+	}
+	
+	/**
+	 * Gets the velocity of the note closed by the last successful call to noteOff
+	 * 
+	 * @return the velocity of the note on
+	 */
+	public byte getVelocity() {
+		return lastVelocity;
+	}
+	
+	/**
+	 * Passes every open note to a sink without closing it. The notes are passed by channel and then by pitch, and the notes of one channel and pitch from the most recent.
+	 * 
+	 * @param stop the time to pass as the stop of every note
+	 * @param sink the sink to pass the open notes to
+	 */
+	public void visitOpen(long stop, NoteSink sink) {
+		if(open == 0)
+			return;
+		for(int key = 0; key < KEYS; key++) {
+			for(int entry = top[key]; entry != -1; entry = below[entry]) {
+				sink.note(starts[entry], stop, (byte) (key & 0x7F), velocities[entry], key / 128);
+			}
+		}
+	}
+	
+	/**
+	 * Pairs the notes of a list of events in one pass. Notes are passed to the sink in the order of their note offs, and notes that are still open at the end of the list are dropped.
+	 * 
+	 * @param events the events to pair, in order
+	 * @param sink the sink to pass every note to
+	 */
+	public void pair(List<MIDIEvent> events, NoteSink sink) {
+		for(int i = 0; i < events.size(); i++) {
+			MIDIEvent event = events.get(i);
+			int status = Byte.toUnsignedInt(event.getStatus());
+			int channel = status & 0x0F;
+			if(isNoteOn(event))
+				noteOn(channel, event.getData(0), event.getData(1), event.getTimeStamp());
+			else if(isNoteOff(event) && noteOff(channel, event.getData(0)))
+				sink.note(lastStart, event.getTimeStamp(), event.getData(0), lastVelocity, channel);
+		}
+	}
+	
+	/**
+	 * Checks whether an event starts a note
+	 * 
+	 * @param event the event to check
+	 * @return true if the event is a note on with a velocity above 0
+	 */
+	public static boolean isNoteOn(MIDIEvent event) {
+		return Byte.toUnsignedInt(event.getStatus()) / 16 == 0x9 && event.getData(1) != 0;
+	}
+	
+	/**
+	 * Checks whether an event ends a note
+	 * 
+	 * @param event the event to check
+	 * @return true if the event is a note off or a note on with a velocity of 0
+	 */
+	public static boolean isNoteOff(MIDIEvent event) {
+		int type = Byte.toUnsignedInt(event.getStatus()) / 16;
+		return type == 0x8 || (type == 0x9 && event.getData(1) == 0);
+	}
+	
+	private static int key(int channel, byte pitch) {
+		return channel * 128 + (pitch & 0x7F);
+	}
+}
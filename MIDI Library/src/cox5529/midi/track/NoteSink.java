@@ -0,0 +1,21 @@
+package cox5529.midi.track;
+
+/**
+ * Receives the notes found by a NotePairer.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public interface NoteSink {
+	
+	/**
+	 * Called for every note once its note off is found
+	 * 
+	 * @param start the time of the note on in MIDI clocks
+	 * @param stop the time of the note off in MIDI clocks
+	 * @param pitch the pitch of the note
+	 * @param velocity the velocity of the note on
+	 * @param channel the channel of the note
+	 */
+	void note(long start, long stop, byte pitch, byte velocity, int channel);
+}
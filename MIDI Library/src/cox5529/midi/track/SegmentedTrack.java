@@ -0,0 +1,81 @@
+package cox5529.midi.track;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import cox5529.midi.event.MIDIEvent;
+
+/**
+ * A track split into measures by a MeasureSegmenter. The note events of every measure are stored one after another in a single list, with timestamps relative to the start of their measure, and a measure is a range of indices into that list.
+ * 
+ * @author Brandon Cox
+ * 		
+ */
+public final class SegmentedTrack {
+	
+	private final ArrayList<MIDIEvent> events;
+	private int[] ends;
+	private long[] starts;
+	private int count;
+	
+	SegmentedTrack() {
+		events = new ArrayList<MIDIEvent>();
+		ends = new int[16];
+		starts = new long[16];
+	}
+	
+	void add(MIDIEvent event) {
+		events.add(event);
+	}
+	
+	void untie(byte status, byte pitch) {
+		for(int i = (count == 0 ? 0: ends[count - 1]); i < events.size() && events.get(i).getTimeStamp() == 0; i++) {
+			MIDIEvent event = events.get(i);
+			if(event.getStatus() == status && event.getData(0) == pitch && event.getData(1) != 0) {
+				events.remove(i);
+				return;
+			}
+		}
+	}
+	
+	void close(long start) {
+		if(count == ends.length) {
+			ends = Arrays.copyOf(ends, count * 2);
+			starts = Arrays.copyOf(starts, count * 2);
+		}
+		ends[count] = events.size();
+		starts[count] = start;
+		count++;
+	}
+	
+	/**
+	 * Gets the number of measures in this track
+	 * 
+	 * @return the number of measures
+	 */
+	public int getMeasureCount() {
+		return count;
+	}
+	
+	/**
+	 * Gets the note events of a measure. The list is a read-only view of the events of this track.
+	 * 
+	 * @param measure the index of the measure
+	 * @return the note events of the measure, with timestamps relative to the start of the measure
+	 */
+	public List<MIDIEvent> getMeasure(int measure) {
+		return Collections.unmodifiableList(events.subList(measure == 0 ? 0: ends[measure - 1], ends[measure]));
+	}
+	
+	/**
+	 * Gets the time at which a measure starts
+	 * 
+	 * @param measure the index of the measure
+	 * @return the start of the measure in MIDI clocks from the start of the track
+	 */
+	public long getMeasureStart(int measure) {
+		return starts[measure];
+	}
+}